@@ -0,0 +1,194 @@
+import java.util.Arrays;
+import java.util.Random;
+
+//Looks the new color of every pixel up instead of computing it, for any RecolorKernel.
+
+//Every kernel is a pure function of the 24 bits of color of a pixel (the alpha is ignored, the result is opaque),
+//so it can be computed ahead of time for all the 16M colors into a table of 64 MB (full), or for the colors
+//as they show up, into a small cache (cached). A lookup costs the same whatever the kernel, a load from the table;
+//computing costs from under a nanosecond (the branch-free gray rule, vectorized) to several (a long PixelOp chain).
+
+//The full table takes a while to fill and is far larger than the caches of the CPU, so it only pays off for a costly
+//kernel over many pixels: a long batch of images. The cache fills as it goes and mostly stays in the L2 cache,
+//it pays off for a costly kernel on a photo which reuses its colors. Neither pays off for the branch-free gray rule,
+//which computes a pixel faster than a lookup. forWorkload chooses from the number of pixels and from the cost
+//of the kernel, measured; RecolorLookupBenchmark shows where each one wins.
+
+public abstract class LookupKernel implements RecolorKernel {
+    private static final int COLORS = 1 << 24;
+    //the costs of the lookups, in nanoseconds per pixel, beyond reading and writing the pixels, and of filling
+    //the full table, per color beyond the kernel (mostly the page faults of its 64 MB), as RecolorLookupBenchmark
+    //measured them on many-flowers.jpg; on random colors, the full table costs up to 15 ns per pixel
+    private static final double FULL_TABLE_NANOS = 3.0;
+    private static final double FILL_NANOS = 15.0;
+    private static final double CACHE_NANOS = 4.0;
+    //the cache is used for a kernel at least this much slower than a hit, a miss costs a hit and the kernel
+    private static final double CACHE_MIN_SPEEDUP = 2.0;
+    //64K entries of a long (512 KB) per thread, which hit about 80% of the pixels of many-flowers.jpg
+    private static final int CACHE_BITS = 16;
+    private static final int CALIBRATION_PIXELS = 1 << 18;
+
+    protected final RecolorKernel kernel;
+
+    private LookupKernel(RecolorKernel kernel) {
+        this.kernel = kernel;
+    }
+
+    public RecolorKernel getKernel() {
+        return kernel;
+    }
+
+    //the table of all the colors, filled by the kernel a chunk of colors at a time
+    public static LookupKernel full(RecolorKernel kernel) {
+        return new FullTableKernel(kernel);
+    }
+
+    //a cache of 2^bits colors per thread in front of the kernel
+    public static LookupKernel cached(RecolorKernel kernel, int bits) {
+        if (bits < 4 || bits > 24) {
+            throw new IllegalArgumentException("Invalid cache size 2^" + bits + ", expected 2^4 to 2^24");
+        }
+        return new CachedKernel(kernel, bits);
+    }
+
+    //the kernel itself, or a lookup in front of it when the kernel is slow enough for the lookup to pay off
+    //over the given number of pixels (all the images of a batch): the full table when the time it saves
+    //is more than the time it takes to fill, the cache otherwise
+    public static RecolorKernel forWorkload(RecolorKernel kernel, long pixels) {
+        double kernelNanos = measureNanosPerPixel(kernel);
+        if (pixels * (kernelNanos - FULL_TABLE_NANOS) > COLORS * (kernelNanos + FILL_NANOS)) {
+            return full(kernel);
+        }
+        if (kernelNanos >= CACHE_MIN_SPEEDUP * CACHE_NANOS) {
+            return cached(kernel, CACHE_BITS);
+        }
+        return kernel;
+    }
+
+    //the time the kernel takes per pixel on random colors, the worst case for a cache but not for the kernel
+    static double measureNanosPerPixel(RecolorKernel kernel) {
+        int[] colors = new int[4096];
+        Random random = new Random(1);
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = random.nextInt();
+        }
+        int[] pixels = new int[colors.length];
+        long fastestTime = Long.MAX_VALUE;
+        //a few rounds, the first ones warm the JIT up
+        for (int round = 0; round < 5; round++) {
+            long startTime = System.nanoTime();
+            for (int done = 0; done < CALIBRATION_PIXELS; done += pixels.length) {
+                System.arraycopy(colors, 0, pixels, 0, pixels.length);
+                kernel.recolor(pixels, pixels.length);
+            }
+            fastestTime = Math.min(fastestTime, System.nanoTime() - startTime);
+        }
+        return (double) fastestTime / CALIBRATION_PIXELS;
+    }
+
+    private static class FullTableKernel extends LookupKernel {
+        private final int[] table = new int[COLORS];
+
+        FullTableKernel(RecolorKernel kernel) {
+            super(kernel);
+            int[] chunk = new int[4096];
+            for (int color = 0; color < COLORS; color += chunk.length) {
+                for (int i = 0; i < chunk.length; i++) {
+                    chunk[i] = color + i;
+                }
+                kernel.recolor(chunk, chunk.length);
+                System.arraycopy(chunk, 0, table, color, chunk.length);
+            }
+        }
+
+        @Override
+        public void recolor(int[] pixels, int length) {
+            for (int i = 0; i < length; i++) {
+                pixels[i] = table[pixels[i] & 0xFFFFFF];
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "full table of " + kernel;
+        }
+    }
+
+    //A direct mapped cache per thread (the kernel is shared by the threads of the parallel engine): an entry holds
+    //a color in its high half and its new color in its low half, so a lookup is a single load.
+    //The colors which miss are gathered and recolored together by the kernel, so the misses are as cheap as computing.
+    private static class CachedKernel extends LookupKernel {
+        private final int bits;
+        private final ThreadLocal<Cache> caches;
+
+        CachedKernel(RecolorKernel kernel, int bits) {
+            super(kernel);
+            this.bits = bits;
+            this.caches = ThreadLocal.withInitial(() -> new Cache(bits));
+        }
+
+        @Override
+        public void recolor(int[] pixels, int length) {
+            Cache cache = caches.get();
+            cache.ensureCapacity(length);
+            long[] entries = cache.entries;
+            int mask = entries.length - 1;
+            int[] missedColors = cache.missedColors;
+            int[] missedIndexes = cache.missedIndexes;
+            int misses = 0;
+            //without a branch on hit or miss, which would be mispredicted as often as the cache misses: every pixel
+            //takes the value of its entry, and is kept as a miss, to be fixed below, if the entry is another color
+            for (int i = 0; i < length; i++) {
+                int color = pixels[i] & 0xFFFFFF;
+                long entry = entries[hash(color) & mask];
+                pixels[i] = (int) entry;
+                missedColors[misses] = color;
+                missedIndexes[misses] = i;
+                //the empty entries hold -1, which no color matches
+                misses += (int) (entry >>> 32) == color ? 0 : 1;
+            }
+            if (misses == 0) {
+                return;
+            }
+            int[] recolored = cache.recolored;
+            System.arraycopy(missedColors, 0, recolored, 0, misses);
+            kernel.recolor(recolored, misses);
+            for (int miss = 0; miss < misses; miss++) {
+                int color = missedColors[miss];
+                entries[hash(color) & mask] = (long) color << 32 | (recolored[miss] & 0xFFFFFFFFL);
+                pixels[missedIndexes[miss]] = recolored[miss];
+            }
+        }
+
+        //neighbouring colors spread over the whole cache
+        private static int hash(int color) {
+            return (color * 0x9E3779B1) >>> 8;
+        }
+
+        @Override
+        public String toString() {
+            return "cache of 2^" + bits + " colors of " + kernel;
+        }
+    }
+
+    private static class Cache {
+        private final long[] entries;
+        //the colors which missed, where they are in the row, and their new colors
+        private int[] missedColors = new int[0];
+        private int[] missedIndexes = new int[0];
+        private int[] recolored = new int[0];
+
+        Cache(int bits) {
+            entries = new long[1 << bits];
+            Arrays.fill(entries, -1L);
+        }
+
+        void ensureCapacity(int length) {
+            if (missedColors.length < length) {
+                missedColors = new int[length];
+                missedIndexes = new int[length];
+                recolored = new int[length];
+            }
+        }
+    }
+}
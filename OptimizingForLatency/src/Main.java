@@ -1,24 +1,53 @@
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
 
 
 public class Main {
     public static final String SOURCE_FILE = "./resources/many-flowers.jpg";
     public static final String DESTINATION_FILE = "./out/many-flowers.jpg";
-
-    public static void main(String[] args) throws IOException {
+    //"auto" (measured on the image, before the timing starts) or widthxheight, see TiledRecolorEngine
+    public static final String TILE_SIZE = System.getProperty("recolor.tile",
+            TiledRecolorEngine.DEFAULT_TILE_WIDTH + "x" + TiledRecolorEngine.DEFAULT_TILE_HEIGHT);
+    //auto, scalar or branchless, see RecolorKernel
+    public static final String KERNEL = System.getProperty("recolor.kernel", "auto");
+    //a chain of pixel operations (see PixelOp.parse) applied instead of the gray rule, e.g. "gray,gamma:1.8"
+    public static final String OPS = System.getProperty("recolor.ops", "");
+    //auto, off, full or cache: whether the new colors are looked up instead of computed, see LookupKernel
+    public static final String LOOKUP = System.getProperty("recolor.lookup", "auto");
+    //the threads of the recolor, all the cores by default
+    public static final int THREADS = Integer.getInteger("recolor.threads", Runtime.getRuntime().availableProcessors());
+
+    //the workers of every stage of the batch mode and the capacity of the queues between them, see RecolorPipeline
+    public static final int DECODERS = Integer.getInteger("batch.decoders", Runtime.getRuntime().availableProcessors());
+    public static final int RECOLORERS = Integer.getInteger("batch.recolorers", 1);
+    public static final int ENCODERS = Integer.getInteger("batch.encoders", Runtime.getRuntime().availableProcessors());
+    public static final int QUEUE_CAPACITY = Integer.getInteger("batch.queue", 4);
+
+    //with no arguments, recolors SOURCE_FILE; with a source and a destination directory, recolors every jpg
+    //of the source into the destination (batch mode)
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 2) {
+            recolorDirectory(new File(args[0]), new File(args[1]));
+            return;
+        }
 
         BufferedImage originalImage = ImageIO.read(new File(SOURCE_FILE));
         BufferedImage resultImage = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_INT_RGB);
+        TiledRecolorEngine engine = TiledRecolorEngine.forTileSize(TILE_SIZE,
+                kernel((long) originalImage.getWidth() * originalImage.getHeight()), originalImage, resultImage);
 
         long startTime = System.currentTimeMillis();
         //recolorSingleThreaded(originalImage, resultImage);
-        int numberOfThreads = 1;
-        recolorMultithreaded(originalImage, resultImage, numberOfThreads);
+        int numberOfThreads = THREADS;
+        recolorMultithreaded(originalImage, resultImage, numberOfThreads, engine);
         long endTime = System.currentTimeMillis();
 
         long duration = endTime - startTime;
@@ -29,40 +58,95 @@ public class Main {
         System.out.println(String.valueOf(duration));
     }
 
-    public static void recolorMultithreaded(BufferedImage originalImage, BufferedImage resultImage, int numberOfThreads) {
-        List<Thread> threads = new ArrayList<>();
-        int width = originalImage.getWidth();
-        int height = originalImage.getHeight() / numberOfThreads;
-
-        for(int i = 0; i < numberOfThreads ; i++) {
-            final int threadMultiplier = i;
-
-            Thread thread = new Thread(() -> {
-                int xOrigin = 0 ;
-                int yOrigin = height * threadMultiplier;
-
-                recolorImage(originalImage, resultImage, xOrigin, yOrigin, width, height);
-            });
+    //the gray rule with the kernel of recolor.kernel, or the compiled chain of recolor.ops, behind a lookup
+    //if recolor.lookup asks for one, or if it pays off over that many pixels
+    public static RecolorKernel kernel(long pixels) {
+        RecolorKernel kernel = OPS.isEmpty() ? RecolorKernel.forName(KERNEL) : PixelOp.compile(PixelOp.parse(OPS));
+        switch (LOOKUP) {
+            case "auto":
+                return LookupKernel.forWorkload(kernel, pixels);
+            case "off":
+                return kernel;
+            case "full":
+                return LookupKernel.full(kernel);
+            case "cache":
+                return LookupKernel.cached(kernel, 16);
+            default:
+                throw new IllegalArgumentException("Unknown lookup " + LOOKUP + ", expected auto, off, full or cache");
+        }
+    }
 
-            threads.add(thread);
+    public static void recolorDirectory(File sourceDirectory, File destinationDirectory)
+            throws IOException, InterruptedException {
+        File[] sources = sourceDirectory.listFiles((directory, name) -> name.toLowerCase(Locale.ROOT).endsWith(".jpg")
+                || name.toLowerCase(Locale.ROOT).endsWith(".jpeg"));
+        if (sources == null) {
+            throw new IOException("Cannot list the files of " + sourceDirectory);
         }
+        if (!destinationDirectory.isDirectory() && !destinationDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + destinationDirectory);
+        }
+        Arrays.sort(sources);
+
+        //the tuning needs an image, the batch mode keeps the default tile size instead of "auto";
+        //every recolor worker recolors a whole image on its own thread, the workers of the stage are the parallelism
+        String tileSize = TILE_SIZE.equals("auto")
+                ? TiledRecolorEngine.DEFAULT_TILE_WIDTH + "x" + TiledRecolorEngine.DEFAULT_TILE_HEIGHT : TILE_SIZE;
+        //the lookup is chosen for the whole batch, as if every image had the size of the first readable one
+        long pixels = firstImagePixels(sources) * sources.length;
+        TiledRecolorEngine engine = TiledRecolorEngine.forTileSize(tileSize, kernel(pixels), null, null);
+        RecolorPipeline pipeline = new RecolorPipeline(DECODERS, RECOLORERS, ENCODERS, QUEUE_CAPACITY, engine);
+
+        long startTime = System.nanoTime();
+        pipeline.run(Arrays.asList(sources), destinationDirectory);
+        System.out.print(pipeline.report(System.nanoTime() - startTime));
+    }
 
-        for(Thread thread : threads) {
-            thread.start();
+    //the pixels of the first image whose header can be read, 0 if there is none; a broken file is left
+    //to the pipeline, which reports it and goes on with the others
+    private static long firstImagePixels(File[] sources) {
+        for (File source : sources) {
+            try {
+                long pixels = imagePixels(source);
+                if (pixels > 0) {
+                    return pixels;
+                }
+            } catch (IOException e) {
+                //the next one then
+            }
         }
+        return 0;
+    }
 
-        for(Thread thread : threads) {
+    //the width times the height of the image, read from its header, 0 if no reader knows its format
+    private static long imagePixels(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input == null ? Collections.emptyIterator() : ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return 0;
+            }
+            ImageReader reader = readers.next();
             try {
-                thread.join();
-            } catch (InterruptedException e) {
+                reader.setInput(input);
+                return (long) reader.getWidth(0) * reader.getHeight(0);
+            } finally {
+                reader.dispose();
             }
         }
     }
 
+    //every row is recolored, whatever the height, on the shared pool of numberOfThreads threads, see ParallelRecolorEngine
+    public static void recolorMultithreaded(BufferedImage originalImage, BufferedImage resultImage, int numberOfThreads,
+                                            TiledRecolorEngine engine) {
+        new ParallelRecolorEngine(ParallelRecolorEngine.sharedPool(numberOfThreads), engine)
+                .recolor(originalImage, resultImage);
+    }
+
     public static void recolorSingleThreaded(BufferedImage originalImage, BufferedImage resultImage) {
         recolorImage(originalImage, resultImage, 0, 0, originalImage.getWidth(), originalImage.getHeight());
     }
 
+    //walks the image column by column, against the layout of the raster, kept as the baseline of RecolorBenchmark
     public static void recolorImage(BufferedImage originalImage, BufferedImage resultImage, int leftCorner, int topCorner,
                                     int width, int height) {
         for(int x = leftCorner ; x < leftCorner + width && x < originalImage.getWidth() ; x++) {
@@ -74,7 +158,12 @@ public class Main {
 
     public static void recolorPixel(BufferedImage originalImage, BufferedImage resultImage, int x, int y) {
         int rgb = originalImage.getRGB(x, y);
+        int newRGB = recolorRGB(rgb);
+        setRGB(resultImage, x, y, newRGB);
+    }
 
+    //the new color of a pixel, as packed (A)RGB, depends on nothing but its color
+    public static int recolorRGB(int rgb) {
         int red = getRed(rgb);
         int green = getGreen(rgb);
         int blue = getBlue(rgb);
@@ -92,8 +181,7 @@ public class Main {
             newGreen = green;
             newBlue = blue;
         }
-        int newRGB = createRGBFromColors(newRed, newGreen, newBlue);
-        setRGB(resultImage, x, y, newRGB);
+        return createRGBFromColors(newRed, newGreen, newBlue);
     }
 
     public static void setRGB(BufferedImage image, int x, int y, int rgb) {
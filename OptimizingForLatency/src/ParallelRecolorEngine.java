@@ -0,0 +1,105 @@
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+//Recolors an image on the threads of a ForkJoinPool, splitting it recursively in halves until the parts are small.
+
+//A fixed strip per thread leaves the threads which finish early idle while a slower one (a busier core, a strip
+//with more work) is still running. Here every worker splits its part in two, works on one half and leaves the other
+//one on its deque, where an idle worker steals it, so the work spreads over the threads whatever their speed.
+//The splits fall on the tile boundaries of the TiledRecolorEngine, and the parts are whole bands of rows for as long
+//as they can be, so every part still walks memory row by row; every pixel of the image is in exactly one part.
+
+//The pools are shared, one per parallelism, and their threads are reused from an image to the next.
+
+public class ParallelRecolorEngine {
+    //parts smaller than this are not split any further, the cost of a task is negligible next to recoloring them
+    private static final int MIN_SPLIT_AREA = 64 * 1024;
+
+    private static final ConcurrentHashMap<Integer, ForkJoinPool> SHARED_POOLS = new ConcurrentHashMap<>();
+
+    private final ForkJoinPool pool;
+    private final TiledRecolorEngine engine;
+
+    public ParallelRecolorEngine(ForkJoinPool pool, TiledRecolorEngine engine) {
+        this.pool = pool;
+        this.engine = engine;
+    }
+
+    //the pool of the given parallelism, created on the first call, its (daemon) threads live as long as the JVM
+    public static ForkJoinPool sharedPool(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Invalid number of threads " + parallelism);
+        }
+        return SHARED_POOLS.computeIfAbsent(parallelism, ForkJoinPool::new);
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public TiledRecolorEngine getEngine() {
+        return engine;
+    }
+
+    public void recolor(BufferedImage originalImage, BufferedImage resultImage) {
+        recolorRegion(originalImage, resultImage, 0, 0, originalImage.getWidth(), originalImage.getHeight());
+    }
+
+    //the region is clipped to the image, like in TiledRecolorEngine.recolorRegion
+    public void recolorRegion(BufferedImage originalImage, BufferedImage resultImage, int left, int top,
+                              int width, int height) {
+        int right = Math.min(left + width, originalImage.getWidth());
+        int bottom = Math.min(top + height, originalImage.getHeight());
+        if (right <= left || bottom <= top) {
+            return;
+        }
+        pool.invoke(new RegionTask(originalImage, resultImage, left, top, right, bottom));
+    }
+
+    private class RegionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BufferedImage originalImage;
+        private final BufferedImage resultImage;
+        private final int left;
+        private final int top;
+        private final int right;
+        private final int bottom;
+
+        RegionTask(BufferedImage originalImage, BufferedImage resultImage, int left, int top, int right, int bottom) {
+            this.originalImage = originalImage;
+            this.resultImage = resultImage;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+
+        @Override
+        protected void compute() {
+            int width = right - left;
+            int height = bottom - top;
+            if ((long) width * height > MIN_SPLIT_AREA) {
+                //rows first, in whole tiles, then columns once the part is a single band of tiles
+                int tileHeights = (height + engine.getTileHeight() - 1) / engine.getTileHeight();
+                if (tileHeights > 1) {
+                    int middle = top + tileHeights / 2 * engine.getTileHeight();
+                    invokeAll(new RegionTask(originalImage, resultImage, left, top, right, middle),
+                            new RegionTask(originalImage, resultImage, left, middle, right, bottom));
+                    return;
+                }
+                int tileWidth = engine.getTileWidth() == 0 ? width : engine.getTileWidth();
+                int tileWidths = (width + tileWidth - 1) / tileWidth;
+                if (tileWidths > 1) {
+                    int middle = left + tileWidths / 2 * tileWidth;
+                    invokeAll(new RegionTask(originalImage, resultImage, left, top, middle, bottom),
+                            new RegionTask(originalImage, resultImage, middle, top, right, bottom));
+                    return;
+                }
+            }
+            engine.recolorRegion(originalImage, resultImage, left, top, width, height);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+//Reads and writes the pixels of an image a row at a time, as packed ARGB ints (like BufferedImage.getRGB).
+
+//BufferedImage.getRGB and Main.setRGB go through the ColorModel and the SampleModel of the image for every pixel,
+//and setRGB allocates a new array per pixel on top of it. For the common layouts, forImage reads and writes
+//the int[] or byte[] behind the raster directly instead, so a row of pixels is a plain loop over an array.
+//Every other layout falls back to the bulk getRGB/setRGB of the BufferedImage, which at least reuse their arrays.
+
+//Taking the array of a DataBuffer stops Java2D from caching the image in video memory, which only matters
+//for images drawn on screen, not for images recolored and written to a file.
+
+public abstract class PixelAccess {
+    //the pixels [x, x + length) of the row y, into rgb[0, length)
+    public abstract void readRow(int x, int y, int length, int[] rgb);
+
+    //rgb[0, length) into the pixels [x, x + length) of the row y
+    public abstract void writeRow(int x, int y, int length, int[] rgb);
+
+    //direct access to the array of the raster when the layout of the image is supported, getRGB/setRGB otherwise
+    public static PixelAccess forImage(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                if (raster.getDataBuffer() instanceof DataBufferInt
+                        && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+                    return new IntPixelAccess(raster, image.getType() == BufferedImage.TYPE_INT_ARGB);
+                }
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                if (raster.getDataBuffer() instanceof DataBufferByte
+                        && raster.getSampleModel() instanceof ComponentSampleModel
+                        && ((ComponentSampleModel) raster.getSampleModel()).getPixelStride() == 3) {
+                    return new ThreeBytePixelAccess(raster);
+                }
+                break;
+        }
+        return new GenericPixelAccess(image);
+    }
+
+    //getRGB/setRGB whatever the layout of the image, mostly for comparing with the direct access
+    public static PixelAccess generic(BufferedImage image) {
+        return new GenericPixelAccess(image);
+    }
+
+    //TYPE_INT_RGB and TYPE_INT_ARGB, a pixel per int
+    private static class IntPixelAccess extends PixelAccess {
+        private final int[] data;
+        private final int offset;
+        private final int scanlineStride;
+        //TYPE_INT_RGB has no alpha, its pixels read as opaque
+        private final boolean alpha;
+
+        public IntPixelAccess(WritableRaster raster, boolean alpha) {
+            SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            DataBufferInt dataBuffer = (DataBufferInt) raster.getDataBuffer();
+            this.data = dataBuffer.getData();
+            this.scanlineStride = sampleModel.getScanlineStride();
+            //the raster may be a part of a larger one, the translation gives its position in the data
+            this.offset = dataBuffer.getOffset()
+                    - raster.getSampleModelTranslateY() * scanlineStride - raster.getSampleModelTranslateX();
+            this.alpha = alpha;
+        }
+
+        @Override
+        public void readRow(int x, int y, int length, int[] rgb) {
+            int index = offset + y * scanlineStride + x;
+            if (alpha) {
+                System.arraycopy(data, index, rgb, 0, length);
+                return;
+            }
+            for (int i = 0; i < length; i++) {
+                rgb[i] = 0xFF000000 | data[index + i];
+            }
+        }
+
+        @Override
+        public void writeRow(int x, int y, int length, int[] rgb) {
+            int index = offset + y * scanlineStride + x;
+            if (alpha) {
+                System.arraycopy(rgb, 0, data, index, length);
+                return;
+            }
+            for (int i = 0; i < length; i++) {
+                data[index + i] = rgb[i] & 0x00FFFFFF;
+            }
+        }
+    }
+
+    //TYPE_3BYTE_BGR, three bytes per pixel, in the order given by the band offsets (blue, green, red)
+    private static class ThreeBytePixelAccess extends PixelAccess {
+        private final byte[] data;
+        private final int offset;
+        private final int scanlineStride;
+        private final int redOffset;
+        private final int greenOffset;
+        private final int blueOffset;
+
+        public ThreeBytePixelAccess(WritableRaster raster) {
+            ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+            DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+            int[] bandOffsets = sampleModel.getBandOffsets();
+            this.data = dataBuffer.getData();
+            this.scanlineStride = sampleModel.getScanlineStride();
+            this.offset = dataBuffer.getOffset()
+                    - raster.getSampleModelTranslateY() * scanlineStride - raster.getSampleModelTranslateX() * 3;
+            this.redOffset = bandOffsets[0];
+            this.greenOffset = bandOffsets[1];
+            this.blueOffset = bandOffsets[2];
+        }
+
+        @Override
+        public void readRow(int x, int y, int length, int[] rgb) {
+            int index = offset + y * scanlineStride + x * 3;
+            for (int i = 0; i < length; i++, index += 3) {
+                rgb[i] = 0xFF000000
+                        | (data[index + redOffset] & 0xFF) << 16
+                        | (data[index + greenOffset] & 0xFF) << 8
+                        | (data[index + blueOffset] & 0xFF);
+            }
+        }
+
+        @Override
+        public void writeRow(int x, int y, int length, int[] rgb) {
+            int index = offset + y * scanlineStride + x * 3;
+            for (int i = 0; i < length; i++, index += 3) {
+                int pixel = rgb[i];
+                data[index + redOffset] = (byte) (pixel >> 16);
+                data[index + greenOffset] = (byte) (pixel >> 8);
+                data[index + blueOffset] = (byte) pixel;
+            }
+        }
+    }
+
+    private static class GenericPixelAccess extends PixelAccess {
+        private final BufferedImage image;
+
+        public GenericPixelAccess(BufferedImage image) {
+            this.image = image;
+        }
+
+        @Override
+        public void readRow(int x, int y, int length, int[] rgb) {
+            image.getRGB(x, y, length, 1, rgb, 0, length);
+        }
+
+        @Override
+        public void writeRow(int x, int y, int length, int[] rgb) {
+            image.setRGB(x, y, length, 1, rgb, 0, length);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+//An operation on the color of a pixel, and chains of them compiled into a single RecolorKernel (see compile).
+
+//apply gives the new color of one pixel, as packed RGB with an opaque alpha, like Main.recolorRGB. It defines what
+//the operation does; the compiled kernels produce exactly the same pixels, only faster (RecolorCheck verifies it).
+
+//Running every operation of a chain as its own pass over the image would read and write the whole image once
+//per operation. The compiled kernel is run by the TiledRecolorEngine like any other, so the chain is applied to a row
+//of a tile while it is in the L1 cache, and the image is read and written once whatever the length of the chain.
+//On top of that, the operations which transform every channel on its own (ChannelOp: brightness, tint, gamma)
+//and the channel swaps are merged, however many of them follow each other, into one lookup in three tables
+//of 256 entries per pixel (TableKernel). The other operations (the gray rule, the threshold) run as their own loop
+//over the row.
+
+//A chain can be given as text, e.g. "gray,brightness:20,gamma:2.2,swap:bgr,tint:ff8000:0.25,threshold:128", see parse.
+
+public interface PixelOp {
+    int apply(int rgb);
+
+    //the rule of Main.recolorRGB: shades of gray get redder, other colors are kept
+    static PixelOp grayShade() {
+        return new GrayShadeOp();
+    }
+
+    //adds delta (from -255 to 255) to every channel, clamped to [0, 255]
+    static PixelOp brightness(int delta) {
+        if (delta < -255 || delta > 255) {
+            throw new IllegalArgumentException("Invalid brightness " + delta + ", expected -255 to 255");
+        }
+        return new ChannelOp("brightness:" + delta, (channel, value) -> Math.max(0, Math.min(255, value + delta)));
+    }
+
+    //moves every channel towards the one of color (packed RGB) by strength, from 0 (no change) to 1 (color itself)
+    static PixelOp tint(int color, double strength) {
+        if (!(strength >= 0 && strength <= 1)) {
+            throw new IllegalArgumentException("Invalid tint strength " + strength + ", expected 0 to 1");
+        }
+        return new ChannelOp(String.format(Locale.ROOT, "tint:%06x:%s", color & 0xFFFFFF, strength), (channel, value) -> {
+            int target = (color >> (16 - 8 * channel)) & 0xFF;
+            return (int) Math.round(value + (target - value) * strength);
+        });
+    }
+
+    //255 * (value / 255) ^ (1 / gamma) for every channel, a gamma above 1 brightens the mid tones
+    static PixelOp gamma(double gamma) {
+        if (!(gamma > 0) || Double.isInfinite(gamma)) {
+            throw new IllegalArgumentException("Invalid gamma " + gamma);
+        }
+        return new ChannelOp("gamma:" + gamma,
+                (channel, value) -> (int) Math.round(255 * Math.pow(value / 255.0, 1 / gamma)));
+    }
+
+    //reorders the channels, order gives where the red, green and blue of the result come from, e.g. "bgr"
+    static PixelOp swapChannels(String order) {
+        if (order.length() != 3) {
+            throw new IllegalArgumentException("Invalid channel order " + order + ", expected e.g. bgr");
+        }
+        int[] sources = new int[3];
+        for (int channel = 0; channel < 3; channel++) {
+            sources[channel] = "rgb".indexOf(order.charAt(channel));
+            if (sources[channel] < 0) {
+                throw new IllegalArgumentException("Invalid channel order " + order + ", expected e.g. bgr");
+            }
+        }
+        return new ChannelSwap(order, sources);
+    }
+
+    //black and white: white when the luma (0.30 red + 0.59 green + 0.11 blue) is at least level, black otherwise
+    static PixelOp threshold(int level) {
+        if (level < 0 || level > 256) {
+            throw new IllegalArgumentException("Invalid threshold " + level + ", expected 0 to 256");
+        }
+        return new ThresholdOp(level);
+    }
+
+    //a comma separated chain of operations: gray, brightness:delta, tint:rrggbb:strength, gamma:gamma,
+    //swap:order, threshold:level
+    static List<PixelOp> parse(String chain) {
+        List<PixelOp> ops = new ArrayList<>();
+        for (String op : chain.split(",")) {
+            String[] nameAndArguments = op.trim().split(":");
+            try {
+                switch (nameAndArguments[0] + "/" + (nameAndArguments.length - 1)) {
+                    case "gray/0":
+                        ops.add(grayShade());
+                        break;
+                    case "brightness/1":
+                        ops.add(brightness(Integer.parseInt(nameAndArguments[1])));
+                        break;
+                    case "tint/2":
+                        ops.add(tint(Integer.parseInt(nameAndArguments[1], 16), Double.parseDouble(nameAndArguments[2])));
+                        break;
+                    case "gamma/1":
+                        ops.add(gamma(Double.parseDouble(nameAndArguments[1])));
+                        break;
+                    case "swap/1":
+                        ops.add(swapChannels(nameAndArguments[1]));
+                        break;
+                    case "threshold/1":
+                        ops.add(threshold(Integer.parseInt(nameAndArguments[1])));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown pixel operation " + op);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid pixel operation " + op, e);
+            }
+        }
+        return ops;
+    }
+
+    //the chain as a single kernel: runs of ChannelOps and ChannelSwaps become one table lookup,
+    //every other operation runs on its own over the row, in the order of the chain
+    static RecolorKernel compile(List<PixelOp> ops) {
+        List<RecolorKernel> stages = new ArrayList<>();
+        ChannelTables tables = null;
+        for (PixelOp op : ops) {
+            if (op instanceof ChannelOp || op instanceof ChannelSwap) {
+                tables = tables == null ? new ChannelTables() : tables;
+                tables.add(op);
+                continue;
+            }
+            if (tables != null) {
+                stages.add(tables.toKernel());
+                tables = null;
+            }
+            stages.add(op instanceof RecolorKernel ? (RecolorKernel) op : new PixelWiseKernel(op));
+        }
+        //an empty chain still makes the pixels opaque, like every operation
+        if (tables != null || stages.isEmpty()) {
+            stages.add((tables != null ? tables : new ChannelTables()).toKernel());
+        }
+        return stages.size() == 1 ? stages.get(0) : new FusedKernel(stages);
+    }
+
+    //the result of the chain for one pixel, an operation after the other
+    static int applyAll(List<PixelOp> ops, int rgb) {
+        int result = 0xFF000000 | rgb;
+        for (PixelOp op : ops) {
+            result = op.apply(result);
+        }
+        return result;
+    }
+
+    //an operation which maps every channel on its own, from its value alone (the same function for any pixel)
+    final class ChannelOp implements PixelOp {
+        interface ChannelFunction {
+            //channel is 0 for red, 1 for green and 2 for blue, the value and the result are from 0 to 255
+            int map(int channel, int value);
+        }
+
+        private final String name;
+        private final ChannelFunction function;
+
+        ChannelOp(String name, ChannelFunction function) {
+            this.name = name;
+            this.function = function;
+        }
+
+        int map(int channel, int value) {
+            return function.map(channel, value);
+        }
+
+        @Override
+        public int apply(int rgb) {
+            int result = 0xFF000000;
+            for (int channel = 0; channel < 3; channel++) {
+                int shift = 16 - 8 * channel;
+                result |= map(channel, (rgb >> shift) & 0xFF) << shift;
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    final class ChannelSwap implements PixelOp {
+        private final String order;
+        //the channel of the source every channel of the result comes from, 0 for red, 1 for green and 2 for blue
+        private final int[] sources;
+
+        ChannelSwap(String order, int[] sources) {
+            this.order = order;
+            this.sources = sources;
+        }
+
+        @Override
+        public int apply(int rgb) {
+            int result = 0xFF000000;
+            for (int channel = 0; channel < 3; channel++) {
+                result |= ((rgb >> (16 - 8 * sources[channel])) & 0xFF) << (16 - 8 * channel);
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "swap:" + order;
+        }
+    }
+
+    //Main.recolorRGB, compiled to the branch-free kernel
+    final class GrayShadeOp extends RecolorKernel.BranchlessKernel implements PixelOp {
+        @Override
+        public int apply(int rgb) {
+            return Main.recolorRGB(rgb);
+        }
+
+        @Override
+        public String toString() {
+            return "gray";
+        }
+    }
+
+    final class ThresholdOp implements PixelOp, RecolorKernel {
+        private final int level;
+
+        ThresholdOp(int level) {
+            this.level = level;
+        }
+
+        //the luma with the weights of ITU-R BT.601 in 8 bit fixed point, from 0 to 255
+        private static int luma(int rgb) {
+            return (77 * ((rgb >> 16) & 0xFF) + 150 * ((rgb >> 8) & 0xFF) + 29 * (rgb & 0xFF)) >> 8;
+        }
+
+        @Override
+        public int apply(int rgb) {
+            return luma(rgb) >= level ? 0xFFFFFFFF : 0xFF000000;
+        }
+
+        //without a branch, like RecolorKernel.BranchlessKernel, so the loop vectorizes
+        @Override
+        public void recolor(int[] pixels, int length) {
+            for (int i = 0; i < length; i++) {
+                int whiteMask = ~((luma(pixels[i]) - level) >> 31);
+                pixels[i] = 0xFF000000 | (whiteMask & 0x00FFFFFF);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "threshold:" + level;
+        }
+    }
+
+    //any other operation, a call per pixel
+    final class PixelWiseKernel implements RecolorKernel {
+        private final PixelOp op;
+
+        PixelWiseKernel(PixelOp op) {
+            this.op = op;
+        }
+
+        @Override
+        public void recolor(int[] pixels, int length) {
+            for (int i = 0; i < length; i++) {
+                pixels[i] = op.apply(pixels[i]);
+            }
+        }
+    }
+
+    //A run of ChannelOps and ChannelSwaps: the channels of the result are table lookups of channels of the source.
+    //Adding a ChannelOp maps the values of the tables through it, adding a swap reorders the tables,
+    //so the run costs three lookups per pixel whatever its length.
+    final class ChannelTables {
+        private final int[] sources = {0, 1, 2};
+        private final int[][] tables = new int[3][256];
+
+        ChannelTables() {
+            for (int[] table : tables) {
+                for (int value = 0; value < 256; value++) {
+                    table[value] = value;
+                }
+            }
+        }
+
+        void add(PixelOp op) {
+            if (op instanceof ChannelOp) {
+                for (int channel = 0; channel < 3; channel++) {
+                    for (int value = 0; value < 256; value++) {
+                        tables[channel][value] = ((ChannelOp) op).map(channel, tables[channel][value]);
+                    }
+                }
+            } else {
+                int[] swapSources = ((ChannelSwap) op).sources;
+                int[] previousSources = sources.clone();
+                int[][] previousTables = tables.clone();
+                for (int channel = 0; channel < 3; channel++) {
+                    sources[channel] = previousSources[swapSources[channel]];
+                    tables[channel] = previousTables[swapSources[channel]].clone();
+                }
+            }
+        }
+
+        //the tables are shifted to the position of their channel in the result, so the lookups are just ored together
+        RecolorKernel toKernel() {
+            int[][] shiftedTables = new int[3][256];
+            for (int channel = 0; channel < 3; channel++) {
+                for (int value = 0; value < 256; value++) {
+                    shiftedTables[channel][value] = tables[channel][value] << (16 - 8 * channel);
+                }
+            }
+            return new TableKernel(sources.clone(), shiftedTables);
+        }
+    }
+
+    final class TableKernel implements RecolorKernel {
+        private final int[] redTable;
+        private final int[] greenTable;
+        private final int[] blueTable;
+        private final int redShift;
+        private final int greenShift;
+        private final int blueShift;
+
+        TableKernel(int[] sources, int[][] shiftedTables) {
+            this.redTable = shiftedTables[0];
+            this.greenTable = shiftedTables[1];
+            this.blueTable = shiftedTables[2];
+            this.redShift = 16 - 8 * sources[0];
+            this.greenShift = 16 - 8 * sources[1];
+            this.blueShift = 16 - 8 * sources[2];
+        }
+
+        @Override
+        public void recolor(int[] pixels, int length) {
+            for (int i = 0; i < length; i++) {
+                int rgb = pixels[i];
+                pixels[i] = 0xFF000000 | redTable[(rgb >> redShift) & 0xFF] | greenTable[(rgb >> greenShift) & 0xFF]
+                        | blueTable[(rgb >> blueShift) & 0xFF];
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "tables";
+        }
+    }
+
+    //the stages of a chain, each one over the whole row before the next one, while the row is in the L1 cache
+    final class FusedKernel implements RecolorKernel {
+        private final RecolorKernel[] stages;
+
+        FusedKernel(List<RecolorKernel> stages) {
+            this.stages = stages.toArray(new RecolorKernel[0]);
+        }
+
+        @Override
+        public void recolor(int[] pixels, int length) {
+            for (RecolorKernel stage : stages) {
+                stage.recolor(pixels, length);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(stages);
+        }
+    }
+}
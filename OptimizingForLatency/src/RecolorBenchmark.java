@@ -0,0 +1,135 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+//Compares the recolor traversals on many-flowers.jpg and on larger synthetic images:
+//the original column by column walk (Main.recolorImage), the same per pixel access row by row,
+//the rows through the bulk getRGB/setRGB, and the direct raster access (see PixelAccess)
+//with whole rows, a few fixed tile sizes and the auto tuned one, and a chain of PixelOps run a pass per operation
+//against the compiled chain.
+
+//Every traversal is run a few times and the fastest run is kept, so the JIT and the page faults of the first run
+//do not count. Run it from the OptimizingForLatency directory, with a heap large enough for the synthetic images
+//(e.g. -Xmx2g). Other sizes can be given as arguments, as widthxheight.
+
+public class RecolorBenchmark {
+    private static final String[] DEFAULT_SYNTHETIC_SIZES = {"4000x3000", "8000x6000"};
+    private static final int RUNS = 5;
+    private static final String CHAIN = "gray,brightness:20,gamma:2.2,swap:brg,tint:ff8000:0.25";
+
+    public static void main(String[] args) throws IOException {
+        String[] syntheticSizes = args.length > 0 ? args : DEFAULT_SYNTHETIC_SIZES;
+
+        benchmark("many-flowers.jpg", ImageIO.read(new File(Main.SOURCE_FILE)));
+        for (String size : syntheticSizes) {
+            String[] widthAndHeight = size.split("x");
+            BufferedImage image = createSyntheticImage(Integer.parseInt(widthAndHeight[0]), Integer.parseInt(widthAndHeight[1]));
+            benchmark("synthetic " + size, image);
+        }
+    }
+
+    private static void benchmark(String name, BufferedImage originalImage) {
+        BufferedImage resultImage = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_INT_RGB);
+        System.out.println(String.format("%s, %dx%d, type %d", name, originalImage.getWidth(), originalImage.getHeight(),
+                originalImage.getType()));
+
+        long columnsTime = fastestRun(() -> Main.recolorSingleThreaded(originalImage, resultImage));
+        report("columns (original)", columnsTime, columnsTime);
+
+        long pixelRowsTime = fastestRun(() -> {
+            for (int y = 0; y < originalImage.getHeight(); y++) {
+                for (int x = 0; x < originalImage.getWidth(); x++) {
+                    Main.recolorPixel(originalImage, resultImage, x, y);
+                }
+            }
+        });
+        report("rows, per pixel", pixelRowsTime, columnsTime);
+
+        TiledRecolorEngine genericEngine = new TiledRecolorEngine(0, 1, false);
+        report("rows, getRGB/setRGB", fastestRun(() -> genericEngine.recolor(originalImage, resultImage)), columnsTime);
+
+        List<TiledRecolorEngine> engines = new ArrayList<>();
+        engines.add(new TiledRecolorEngine(0, 1));
+        engines.add(new TiledRecolorEngine(64, 64));
+        engines.add(new TiledRecolorEngine(TiledRecolorEngine.DEFAULT_TILE_WIDTH, TiledRecolorEngine.DEFAULT_TILE_HEIGHT));
+        engines.add(new TiledRecolorEngine(1024, 16));
+        engines.add(new TiledRecolorEngine(1024, 16, true, RecolorKernel.forName("scalar")));
+        for (TiledRecolorEngine engine : engines) {
+            long time = fastestRun(() -> engine.recolor(originalImage, resultImage));
+            String tiles = engine.getTileWidth() == 0 && engine.getTileHeight() == 1 ? "rows" : "tiles " + engine;
+            report(tiles + ", direct, " + engine.getKernel().getClass().getSimpleName(), time, columnsTime);
+        }
+
+        long tuningStartTime = System.nanoTime();
+        TiledRecolorEngine tunedEngine = TiledRecolorEngine.autoTuned(RecolorKernel.forName("auto"), originalImage, resultImage);
+        long tuningTime = System.nanoTime() - tuningStartTime;
+        long tunedTime = fastestRun(() -> tunedEngine.recolor(originalImage, resultImage));
+        report("auto tuned " + tunedEngine + String.format(", direct (tuned in %d ms)", tuningTime / 1_000_000),
+                tunedTime, columnsTime);
+
+        //a chain of operations, an engine pass over the whole image per operation against the compiled chain
+        List<PixelOp> chain = PixelOp.parse(CHAIN);
+        List<TiledRecolorEngine> passes = new ArrayList<>();
+        for (PixelOp op : chain) {
+            passes.add(new TiledRecolorEngine(TiledRecolorEngine.DEFAULT_TILE_WIDTH, TiledRecolorEngine.DEFAULT_TILE_HEIGHT,
+                    true, PixelOp.compile(Collections.singletonList(op))));
+        }
+        long passesTime = fastestRun(() -> {
+            passes.get(0).recolor(originalImage, resultImage);
+            for (int i = 1; i < passes.size(); i++) {
+                passes.get(i).recolor(resultImage, resultImage);
+            }
+        });
+        report(chain.size() + " ops, a pass per op", passesTime, columnsTime);
+        TiledRecolorEngine fusedEngine = new TiledRecolorEngine(TiledRecolorEngine.DEFAULT_TILE_WIDTH,
+                TiledRecolorEngine.DEFAULT_TILE_HEIGHT, true, PixelOp.compile(chain));
+        report(chain.size() + " ops, fused " + fusedEngine.getKernel(),
+                fastestRun(() -> fusedEngine.recolor(originalImage, resultImage)), columnsTime);
+        System.out.println();
+    }
+
+    private static long fastestRun(Runnable recolor) {
+        long fastestTime = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long startTime = System.nanoTime();
+            recolor.run();
+            fastestTime = Math.min(fastestTime, System.nanoTime() - startTime);
+        }
+        return fastestTime;
+    }
+
+    private static void report(String traversal, long time, long baselineTime) {
+        System.out.println(String.format("    %-60s %8.1f ms  %5.2fx", traversal, time / 1e6, (double) baselineTime / time));
+    }
+
+    //blocks of random colors, a third of them shades of gray, with some noise so the gray test goes both ways
+    private static BufferedImage createSyntheticImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        int blockSize = 32;
+        for (int blockTop = 0; blockTop < height; blockTop += blockSize) {
+            for (int blockLeft = 0; blockLeft < width; blockLeft += blockSize) {
+                int red = random.nextInt(256);
+                boolean gray = random.nextInt(3) == 0;
+                int green = gray ? red : random.nextInt(256);
+                int blue = gray ? red : random.nextInt(256);
+                for (int y = blockTop; y < Math.min(blockTop + blockSize, height); y++) {
+                    for (int x = blockLeft; x < Math.min(blockLeft + blockSize, width); x++) {
+                        int noise = random.nextInt(41) - 20;
+                        image.setRGB(x, y, Main.createRGBFromColors(clamp(red + noise), clamp(green - noise), clamp(blue)));
+                    }
+                }
+            }
+        }
+        return image;
+    }
+
+    private static int clamp(int color) {
+        return Math.max(0, Math.min(255, color));
+    }
+}
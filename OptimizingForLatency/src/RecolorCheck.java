@@ -0,0 +1,191 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+//Checks that the recolor engine produces exactly the pixels of the original per pixel recolor (Main.recolorPixel),
+//for every layout PixelAccess reads or writes directly, for one it does not (through getRGB/setRGB),
+//for parts of larger images, whose rasters do not start at the beginning of their arrays,
+//and for the parallel recolor with a few numbers of threads.
+//Every RecolorKernel is also checked against Main.recolorRGB for all the 16M colors, with any alpha,
+//which proves they produce the same pixels for any image, and compiled PixelOp chains, with and without
+//a LookupKernel in front of them, against their operations.
+
+//Run it from the OptimizingForLatency directory, it exits with status 1 if any pixel differs.
+
+public class RecolorCheck {
+    private static final int[] IMAGE_TYPES = {
+            BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_USHORT_565_RGB
+    };
+
+    //fused in one table lookup, split around pixel wise operations, and a single pixel wise operation
+    private static final String[] PIXEL_OP_CHAINS = {
+            "gray",
+            "brightness:40",
+            "swap:bgr,gamma:2.2,swap:gbr,brightness:-60",
+            "gray,brightness:20,gamma:2.2,swap:brg,tint:ff8000:0.25",
+            "tint:0000ff:0.5,gray,swap:gbr,brightness:-30,threshold:100,gamma:0.5",
+            "threshold:128"
+    };
+
+    public static void main(String[] args) throws IOException {
+        BufferedImage photo = ImageIO.read(new File(Main.SOURCE_FILE));
+        //a corner of the photo is enough, and keeps the per pixel recolor quick
+        BufferedImage sample = copy(photo.getSubimage(0, 0, 517, 389), BufferedImage.TYPE_INT_ARGB);
+
+        int failures = 0;
+        for (String kernelName : new String[]{"scalar", "branchless"}) {
+            failures += checkKernel(kernelName, RecolorKernel.forName(kernelName));
+        }
+
+        for (String chain : PIXEL_OP_CHAINS) {
+            failures += checkChain(chain);
+        }
+
+        for (int sourceType : IMAGE_TYPES) {
+            for (int resultType : IMAGE_TYPES) {
+                BufferedImage source = copy(sample, sourceType);
+                failures += check(typeName(sourceType) + " to " + typeName(resultType), source,
+                        new BufferedImage(source.getWidth(), source.getHeight(), resultType));
+
+                //the same images, as parts of larger ones
+                BufferedImage largerSource = new BufferedImage(source.getWidth() + 13, source.getHeight() + 7, sourceType);
+                BufferedImage subSource = largerSource.getSubimage(5, 3, source.getWidth(), source.getHeight());
+                subSource.setData(source.getRaster());
+                BufferedImage largerResult = new BufferedImage(source.getWidth() + 11, source.getHeight() + 9, resultType);
+                failures += check(typeName(sourceType) + " to " + typeName(resultType) + ", sub images", subSource,
+                        largerResult.getSubimage(7, 2, source.getWidth(), source.getHeight()));
+            }
+        }
+
+        //the parts of the parallel recolor, for heights which do not divide evenly between the threads
+        for (int threads = 1; threads <= 4; threads++) {
+            ParallelRecolorEngine parallelEngine = new ParallelRecolorEngine(ParallelRecolorEngine.sharedPool(threads),
+                    new TiledRecolorEngine(100, 37));
+            BufferedImage expected = new BufferedImage(sample.getWidth(), sample.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Main.recolorSingleThreaded(sample, expected);
+            BufferedImage result = new BufferedImage(sample.getWidth(), sample.getHeight(), BufferedImage.TYPE_INT_RGB);
+            parallelEngine.recolor(sample, result);
+            failures += compare("parallel, " + threads + " threads", expected, result);
+        }
+
+        System.out.println(failures == 0 ? "All pixels match" : failures + " checks failed");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    //returns the number of failures, 0 or 1
+    private static int checkKernel(String name, RecolorKernel kernel) {
+        int[] pixels = new int[1 << 16];
+        for (int color = 0; color < 1 << 24; color += pixels.length) {
+            for (int i = 0; i < pixels.length; i++) {
+                //the alpha varies too, the kernels have to ignore it
+                pixels[i] = (i * 0x9E3779B1 & 0xFF000000) | (color + i);
+            }
+            kernel.recolor(pixels, pixels.length);
+            for (int i = 0; i < pixels.length; i++) {
+                int rgb = (i * 0x9E3779B1 & 0xFF000000) | (color + i);
+                if (pixels[i] != Main.recolorRGB(rgb)) {
+                    System.out.println(String.format("%s kernel: %08x is recolored to %08x instead of %08x",
+                            name, rgb, pixels[i], Main.recolorRGB(rgb)));
+                    return 1;
+                }
+            }
+        }
+        System.out.println(name + " kernel, all the colors: ok");
+        return 0;
+    }
+
+    //the compiled chain, and the lookups in front of it, against its operations applied one after the other,
+    //on random colors with any alpha; returns the number of failures
+    private static int checkChain(String chain) {
+        List<PixelOp> ops = PixelOp.parse(chain);
+        RecolorKernel compiled = PixelOp.compile(ops);
+        int failures = 0;
+        //a small cache, so the colors keep evicting each other
+        for (RecolorKernel kernel : new RecolorKernel[]{compiled, LookupKernel.cached(compiled, 8), LookupKernel.full(compiled)}) {
+            failures += checkChainKernel(chain, ops, kernel);
+        }
+        return failures;
+    }
+
+    private static int checkChainKernel(String chain, List<PixelOp> ops, RecolorKernel kernel) {
+        Random random = new Random(chain.hashCode());
+        int[] pixels = new int[1 << 20];
+        int[] colors = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            //few enough colors for the cache to hit too
+            colors[i] = random.nextInt() & (i % 2 == 0 ? 0xFF0F0F0F : 0xFFFFFFFF);
+            pixels[i] = colors[i];
+        }
+        //in rows of different lengths, like the tiles of the engine
+        for (int start = 0, length = 1; start < pixels.length; start += length, length = length * 3 % 1021 + 1) {
+            int[] row = Arrays.copyOfRange(pixels, start, Math.min(start + length, pixels.length));
+            kernel.recolor(row, row.length);
+            System.arraycopy(row, 0, pixels, start, row.length);
+        }
+        for (int i = 0; i < pixels.length; i++) {
+            if (pixels[i] != PixelOp.applyAll(ops, colors[i])) {
+                System.out.println(String.format("chain %s, %s: %08x is recolored to %08x instead of %08x",
+                        chain, kernel, colors[i], pixels[i], PixelOp.applyAll(ops, colors[i])));
+                return 1;
+            }
+        }
+        System.out.println("chain " + chain + ", " + kernel + ": ok");
+        return 0;
+    }
+
+    //returns the number of failures, 0 or 1
+    private static int check(String name, BufferedImage source, BufferedImage result) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        BufferedImage expected = new BufferedImage(width, height, result.getType());
+        Main.recolorSingleThreaded(source, expected);
+        //odd tile sizes, so the last tiles of the rows and of the columns are partial
+        new TiledRecolorEngine(100, 37).recolor(source, result);
+        return compare(name, expected, result);
+    }
+
+    //returns the number of failures, 0 or 1
+    private static int compare(String name, BufferedImage expected, BufferedImage result) {
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (expected.getRGB(x, y) != result.getRGB(x, y)) {
+                    System.out.println(String.format("%s: pixel (%d, %d) is %08x instead of %08x",
+                            name, x, y, result.getRGB(x, y), expected.getRGB(x, y)));
+                    return 1;
+                }
+            }
+        }
+        System.out.println(name + ": ok");
+        return 0;
+    }
+
+    private static BufferedImage copy(BufferedImage image, int type) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        copy.getGraphics().drawImage(image, 0, 0, null);
+        return copy;
+    }
+
+    private static String typeName(int type) {
+        switch (type) {
+            case BufferedImage.TYPE_INT_RGB:
+                return "INT_RGB";
+            case BufferedImage.TYPE_INT_ARGB:
+                return "INT_ARGB";
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return "3BYTE_BGR";
+            default:
+                return "type " + type;
+        }
+    }
+}
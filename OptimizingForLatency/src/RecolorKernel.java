@@ -0,0 +1,76 @@
+//Recolors a row of pixels, packed as ARGB ints, in place, with the rule of Main.recolorRGB.
+
+//Both kernels produce exactly the same pixels (RecolorCheck verifies it for every one of the 16M colors),
+//so switching the kernel never changes the image, only the time it takes to recolor it.
+
+//The kernel is chosen with -Drecolor.kernel=auto|scalar|branchless, auto being the default.
+
+public interface RecolorKernel {
+    //the gray test and the adjustments of Main.recolorRGB
+    int GRAY_THRESHOLD = 30;
+    int RED_INCREASE = 10;
+    int GREEN_DECREASE = 80;
+    int BLUE_DECREASE = 20;
+
+    void recolor(int[] pixels, int length);
+
+    static RecolorKernel forName(String name) {
+        switch (name) {
+            case "auto":
+            case "branchless":
+                return new BranchlessKernel();
+            case "scalar":
+                return new ScalarKernel();
+            default:
+                throw new IllegalArgumentException("Unknown recolor kernel " + name + ", expected auto, scalar or branchless");
+        }
+    }
+
+    //Main.recolorRGB for every pixel: a branch per pixel on whether it is gray, which the CPU mispredicts
+    //about as often as grays and colors alternate
+    class ScalarKernel implements RecolorKernel {
+        @Override
+        public void recolor(int[] pixels, int length) {
+            for (int i = 0; i < length; i++) {
+                pixels[i] = Main.recolorRGB(pixels[i]);
+            }
+        }
+    }
+
+    //The same rule without a single branch: the gray test gives a mask of all ones (gray) or all zeros (not gray),
+    //and the mask selects the adjusted pixel or the original one.
+    //Every operation of the loop (shifts, and, subtractions, abs) has a SIMD counterpart, so the JIT compiles the loop
+    //to vector instructions (SSE/AVX), which work on 4 to 16 pixels at a time. Java 8 has no Vector API
+    //(jdk.incubator.vector needs Java 16 and the incubator module), the auto vectorizer of HotSpot does the job instead,
+    //and on a JVM or a CPU where it does not, the loop still runs without mispredicted branches.
+    class BranchlessKernel implements RecolorKernel {
+        @Override
+        public void recolor(int[] pixels, int length) {
+            for (int i = 0; i < length; i++) {
+                int rgb = pixels[i];
+                int red = (rgb >> 16) & 0xFF;
+                int green = (rgb >> 8) & 0xFF;
+                int blue = rgb & 0xFF;
+
+                //a difference under the threshold is negative once the threshold is subtracted,
+                //the sign bit of the three of them anded together, spread over the whole int, is the mask
+                int grayMask = ((Math.abs(red - green) - GRAY_THRESHOLD)
+                        & (Math.abs(red - blue) - GRAY_THRESHOLD)
+                        & (Math.abs(green - blue) - GRAY_THRESHOLD)) >> 31;
+
+                //the saturation is done with masks as well, HotSpot does not vectorize Math.min and Math.max on ints
+                int increasedRed = red + RED_INCREASE;
+                increasedRed -= (increasedRed - 255) & ((255 - increasedRed) >> 31);
+                int decreasedGreen = green - GREEN_DECREASE;
+                decreasedGreen &= ~(decreasedGreen >> 31);
+                int decreasedBlue = blue - BLUE_DECREASE;
+                decreasedBlue &= ~(decreasedBlue >> 31);
+
+                //the mask selects the whole adjusted pixel or the original one, selecting every channel on its own
+                //(red + ((increasedRed - red) & grayMask)...) is just as correct, but the JIT gives up on vectorizing it
+                int adjustedRGB = (increasedRed << 16) | (decreasedGreen << 8) | decreasedBlue;
+                pixels[i] = 0xFF000000 | (adjustedRGB & grayMask) | (rgb & ~grayMask);
+            }
+        }
+    }
+}
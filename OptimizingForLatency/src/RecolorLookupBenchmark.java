@@ -0,0 +1,75 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+//Compares computing the new colors (the kernel itself) with looking them up (LookupKernel): in the full table
+//of the 16M colors, whose filling time is reported apart, and in the per thread cache, for a cheap kernel
+//(the branch-free gray rule) and costlier ones (PixelOp chains), on many-flowers.jpg and on a synthetic image
+//of random colors, the worst case for the cache.
+
+//The number of images of a batch the full table needs to pay off is its filling time divided by the time it saves
+//per image. The last column is what LookupKernel.forWorkload chooses for a single image and for a batch of 100.
+//Run it from the OptimizingForLatency directory, e.g. with -Xmx2g.
+
+public class RecolorLookupBenchmark {
+    private static final int RUNS = 5;
+    private static final String[] CHAINS = {
+            "gray",
+            "gray,brightness:20,gamma:2.2,swap:brg,tint:ff8000:0.25",
+            "tint:0000ff:0.5,gray,swap:gbr,brightness:-30,gray,gamma:0.5,threshold:100"
+    };
+
+    public static void main(String[] args) throws IOException {
+        BufferedImage photo = ImageIO.read(new File(Main.SOURCE_FILE));
+        BufferedImage synthetic = new BufferedImage(4000, 3000, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        int[] row = new int[synthetic.getWidth()];
+        for (int y = 0; y < synthetic.getHeight(); y++) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = random.nextInt();
+            }
+            synthetic.setRGB(0, y, row.length, 1, row, 0, row.length);
+        }
+
+        for (String chain : CHAINS) {
+            RecolorKernel kernel = PixelOp.compile(PixelOp.parse(chain));
+            long fillStartTime = System.nanoTime();
+            LookupKernel fullTable = LookupKernel.full(kernel);
+            long fillTime = System.nanoTime() - fillStartTime;
+            System.out.println(String.format("%s, %.2f ns per pixel, full table filled in %.1f ms", chain,
+                    LookupKernel.measureNanosPerPixel(kernel), fillTime / 1e6));
+            benchmark("many-flowers.jpg", photo, kernel, fullTable, fillTime);
+            benchmark("random colors", synthetic, kernel, fullTable, fillTime);
+            System.out.println();
+        }
+    }
+
+    private static void benchmark(String name, BufferedImage originalImage, RecolorKernel kernel, LookupKernel fullTable,
+                                  long fillTime) {
+        BufferedImage resultImage = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_INT_RGB);
+        long pixels = (long) originalImage.getWidth() * originalImage.getHeight();
+        long directTime = time(kernel, originalImage, resultImage);
+        long fullTableTime = time(fullTable, originalImage, resultImage);
+        long cachedTime = time(LookupKernel.cached(kernel, 16), originalImage, resultImage);
+        String batchToPayOff = fullTableTime < directTime
+                ? String.format("%.1f images", (double) fillTime / (directTime - fullTableTime)) : "never";
+        System.out.println(String.format("    %-18s direct %7.1f ms  full table %7.1f ms (pays off after %s)  cache %7.1f ms",
+                name, directTime / 1e6, fullTableTime / 1e6, batchToPayOff, cachedTime / 1e6));
+        System.out.println(String.format("    %-18s chosen for 1 image: %s, for 100: %s", "",
+                LookupKernel.forWorkload(kernel, pixels), LookupKernel.forWorkload(kernel, 100 * pixels)));
+    }
+
+    private static long time(RecolorKernel kernel, BufferedImage originalImage, BufferedImage resultImage) {
+        TiledRecolorEngine engine = new TiledRecolorEngine(TiledRecolorEngine.DEFAULT_TILE_WIDTH,
+                TiledRecolorEngine.DEFAULT_TILE_HEIGHT, true, kernel);
+        long fastestTime = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long startTime = System.nanoTime();
+            engine.recolor(originalImage, resultImage);
+            fastestTime = Math.min(fastestTime, System.nanoTime() - startTime);
+        }
+        return fastestTime;
+    }
+}
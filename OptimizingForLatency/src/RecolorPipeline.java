@@ -0,0 +1,228 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+//Recolors a batch of image files through three stages: decode (ImageIO.read), recolor and encode (ImageIO.write),
+//each one with its own threads, so the stages work on different images at the same time.
+
+//Decoding and encoding a JPEG take longer than recoloring it, so running the three steps one after the other
+//leaves the recolor waiting on the codecs most of the time. With a stage per step, the slowest stage sets the pace
+//of the batch, and it can be given more threads than the others.
+//The stages hand the images over through bounded queues: a stage which runs ahead of the next one blocks on its
+//full queue (back pressure), so only a few decoded images are in memory at any time, whatever the size of the batch.
+
+//An image which cannot be read or written is reported and counted as failed, the others go on.
+//Anything else thrown by a worker (an OutOfMemoryError while decoding a huge image) stops the whole batch
+//and is rethrown by run.
+
+public class RecolorPipeline {
+    //marks the end of the input of a stage, there is one for every worker of the stage
+    private static final Job END = new Job(null, null);
+
+    private final Stage decode;
+    private final Stage recolor;
+    private final Stage encode;
+    private final int queueCapacity;
+    private final TiledRecolorEngine engine;
+    private final AtomicInteger failures = new AtomicInteger();
+    //the first error which killed a worker, and the thread waiting in run, which is woken up by it
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private volatile Thread caller;
+
+    public RecolorPipeline(int decoders, int recolorers, int encoders, int queueCapacity, TiledRecolorEngine engine) {
+        if (decoders <= 0 || recolorers <= 0 || encoders <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Invalid pipeline " + decoders + "/" + recolorers + "/" + encoders
+                    + " workers, queues of " + queueCapacity);
+        }
+        this.decode = new Stage("decode", decoders);
+        this.recolor = new Stage("recolor", recolorers);
+        this.encode = new Stage("encode", encoders);
+        this.queueCapacity = queueCapacity;
+        this.engine = engine;
+    }
+
+    //recolors every source into a file of the same name in the destination directory, returns when they are all done
+    //or throws the error which killed a worker
+    public void run(List<File> sources, File destinationDirectory) throws InterruptedException {
+        caller = Thread.currentThread();
+        BlockingQueue<Job> files = new LinkedBlockingQueue<>();
+        for (File source : sources) {
+            files.add(new Job(source, new File(destinationDirectory, source.getName())));
+        }
+        for (int i = 0; i < decode.workers; i++) {
+            files.add(END);
+        }
+        BlockingQueue<Job> decoded = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Job> recolored = new ArrayBlockingQueue<>(queueCapacity);
+
+        List<Thread> threads = new ArrayList<>();
+        threads.addAll(decode.start(files, decoded, recolor.workers, job -> {
+            job.originalImage = ImageIO.read(job.source);
+            if (job.originalImage == null) {
+                throw new IOException("no reader for the format of the file");
+            }
+        }));
+        threads.addAll(recolor.start(decoded, recolored, encode.workers, job -> {
+            job.resultImage = new BufferedImage(job.originalImage.getWidth(), job.originalImage.getHeight(),
+                    BufferedImage.TYPE_INT_RGB);
+            engine.recolor(job.originalImage, job.resultImage);
+            job.originalImage = null;
+        }));
+        threads.addAll(encode.start(recolored, null, 0, job -> {
+            if (!ImageIO.write(job.resultImage, "jpg", job.destination)) {
+                throw new IOException("no jpg writer");
+            }
+            job.resultImage = null;
+        }));
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            if (error.get() == null) {
+                throw e;
+            }
+            //a worker died: the others may wait forever on a stage which has no workers left, stop them all
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        Throwable workerError = error.get();
+        if (workerError != null) {
+            //the interrupt may have come after the last join
+            Thread.interrupted();
+            if (workerError instanceof Error) {
+                throw (Error) workerError;
+            }
+            throw new IllegalStateException("A worker of the pipeline failed", workerError);
+        }
+    }
+
+    public int getFailures() {
+        return failures.get();
+    }
+
+    //the images per second of a run which took elapsedNanos, and for every stage the time its workers were busy,
+    //per image, and blocked on the next stage; the busy times are wall clock times, with more workers than cores
+    //they include the time the workers waited for a core
+    public String report(long elapsedNanos) {
+        StringBuilder report = new StringBuilder();
+        int images = encode.processed.get();
+        report.append(String.format(Locale.ROOT, "%d images in %.1f s, %.2f images/s, %d failed%n",
+                images, elapsedNanos / 1e9, images / (elapsedNanos / 1e9), failures.get()));
+        for (Stage stage : new Stage[]{decode, recolor, encode}) {
+            report.append(stage.report());
+        }
+        return report.toString();
+    }
+
+    private static class Job {
+        private final File source;
+        private final File destination;
+        private BufferedImage originalImage;
+        private BufferedImage resultImage;
+
+        private Job(File source, File destination) {
+            this.source = source;
+            this.destination = destination;
+        }
+    }
+
+    private interface Step {
+        void process(Job job) throws IOException;
+    }
+
+    private class Stage {
+        private final String name;
+        private final int workers;
+        private final AtomicInteger processed = new AtomicInteger();
+        private final LongAdder busyNanos = new LongAdder();
+        //the time spent waiting for room in the queue of the next stage, the stages after a bottleneck have none
+        private final LongAdder blockedNanos = new LongAdder();
+        private final AtomicInteger runningWorkers = new AtomicInteger();
+
+        private Stage(String name, int workers) {
+            this.name = name;
+            this.workers = workers;
+        }
+
+        //the workers take the jobs from input until they get END, and the last of them to stop sends an END
+        //to every worker of the next stage; output is null for the last stage
+        private List<Thread> start(BlockingQueue<Job> input, BlockingQueue<Job> output, int nextWorkers, Step step) {
+            runningWorkers.set(workers);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        work(input, output, step);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Throwable e) {
+                        if (error.compareAndSet(null, e)) {
+                            caller.interrupt();
+                        }
+                    } finally {
+                        //a worker which died counts too, or the next stage would wait for END forever
+                        if (runningWorkers.decrementAndGet() == 0 && output != null) {
+                            sendEnd(output, nextWorkers);
+                        }
+                    }
+                }, name + "-" + i);
+                thread.start();
+                threads.add(thread);
+            }
+            return threads;
+        }
+
+        private void sendEnd(BlockingQueue<Job> output, int nextWorkers) {
+            try {
+                for (int j = 0; j < nextWorkers; j++) {
+                    output.put(END);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void work(BlockingQueue<Job> input, BlockingQueue<Job> output, Step step) throws InterruptedException {
+            for (Job job = input.take(); job != END; job = input.take()) {
+                long startTime = System.nanoTime();
+                try {
+                    step.process(job);
+                } catch (IOException | RuntimeException e) {
+                    failures.incrementAndGet();
+                    System.err.println(name + " of " + job.source + " failed: " + e);
+                    continue;
+                } finally {
+                    busyNanos.add(System.nanoTime() - startTime);
+                }
+                processed.incrementAndGet();
+                if (output != null) {
+                    long putTime = System.nanoTime();
+                    output.put(job);
+                    blockedNanos.add(System.nanoTime() - putTime);
+                }
+            }
+        }
+
+        private String report() {
+            int count = Math.max(1, processed.get());
+            return String.format(Locale.ROOT, "    %-8s %2d workers  busy %8.1f s  %8.1f ms/image  blocked %8.1f s%n",
+                    name, workers, busyNanos.sum() / 1e9, busyNanos.sum() / 1e6 / count, blockedNanos.sum() / 1e9);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+//Measures how the parallel recolor (ParallelRecolorEngine) scales with the number of threads, from 1 to the number
+//of cores (or to the number given as the first argument), on many-flowers.jpg and on a larger synthetic image.
+
+//For every number of threads it reports the fastest of a few runs, the speedup over a single thread,
+//and the efficiency (the speedup divided by the number of threads, 100% being a perfect scaling).
+//The pools are the shared ones of ParallelRecolorEngine, so the threads are started once, before the timed runs.
+//Run it from the OptimizingForLatency directory, e.g. with -Xmx2g.
+
+public class RecolorScalingBenchmark {
+    private static final int RUNS = 5;
+    private static final String SYNTHETIC_SIZE = "8000x6000";
+
+    public static void main(String[] args) throws IOException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+        benchmark("many-flowers.jpg", ImageIO.read(new File(Main.SOURCE_FILE)), maxThreads);
+        String[] widthAndHeight = SYNTHETIC_SIZE.split("x");
+        BufferedImage synthetic = new BufferedImage(Integer.parseInt(widthAndHeight[0]), Integer.parseInt(widthAndHeight[1]),
+                BufferedImage.TYPE_INT_RGB);
+        //the recolor does the same work whatever the colors, a copy of the photo tiled over the image is enough
+        synthetic.getGraphics().drawImage(ImageIO.read(new File(Main.SOURCE_FILE)), 0, 0, synthetic.getWidth(),
+                synthetic.getHeight(), null);
+        benchmark("synthetic " + SYNTHETIC_SIZE, synthetic, maxThreads);
+    }
+
+    private static void benchmark(String name, BufferedImage originalImage, int maxThreads) {
+        BufferedImage resultImage = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_INT_RGB);
+        TiledRecolorEngine engine = new TiledRecolorEngine(TiledRecolorEngine.DEFAULT_TILE_WIDTH,
+                TiledRecolorEngine.DEFAULT_TILE_HEIGHT);
+        System.out.println(String.format("%s, %dx%d, %d cores", name, originalImage.getWidth(), originalImage.getHeight(),
+                Runtime.getRuntime().availableProcessors()));
+
+        long singleThreadTime = 0;
+        for (int threads = 1; threads <= maxThreads; threads = nextThreadCount(threads, maxThreads)) {
+            ParallelRecolorEngine parallelEngine = new ParallelRecolorEngine(ParallelRecolorEngine.sharedPool(threads), engine);
+            long time = fastestRun(() -> parallelEngine.recolor(originalImage, resultImage));
+            if (threads == 1) {
+                singleThreadTime = time;
+            }
+            double speedup = (double) singleThreadTime / time;
+            System.out.println(String.format("    %3d threads %8.1f ms  %5.2fx  %4.0f%%",
+                    threads, time / 1e6, speedup, 100 * speedup / threads));
+        }
+        System.out.println();
+    }
+
+    //powers of two, and maxThreads itself when it is not one
+    private static int nextThreadCount(int threads, int maxThreads) {
+        return threads < maxThreads && threads * 2 > maxThreads ? maxThreads : threads * 2;
+    }
+
+    private static long fastestRun(Runnable recolor) {
+        long fastestTime = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long startTime = System.nanoTime();
+            recolor.run();
+            fastestTime = Math.min(fastestTime, System.nanoTime() - startTime);
+        }
+        return fastestTime;
+    }
+}
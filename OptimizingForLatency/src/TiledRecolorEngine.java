@@ -0,0 +1,144 @@
+import java.awt.image.BufferedImage;
+
+//Recolors an image tile by tile, and every tile row by row, in the order the pixels are laid out in memory.
+
+//The rasters of a BufferedImage are stored row after row, so walking an image column by column (like Main.recolorImage)
+//touches a new cache line, and soon a new page, for almost every pixel. Walking the rows reads every cache line once,
+//and lets the hardware prefetcher run ahead of the loop.
+//The tiles bound the part of the source and the result a recolor works on at a time: a tile small enough to stay
+//in the L1/L2 cache can be worked on again (by the next operation of a chain) without going back to memory,
+//and the tiles are the units the work is split in between threads.
+
+//The pixels are read a row of a tile at a time into an int[] (see PixelAccess), recolored there by the RecolorKernel,
+//and written back, so the recolor itself is a loop over an array which stays in the L1 cache.
+
+//The best tile size depends on the cache sizes of the machine and on the width of the image, autoTuned measures it.
+
+public class TiledRecolorEngine {
+    public static final int DEFAULT_TILE_WIDTH = 256;
+    public static final int DEFAULT_TILE_HEIGHT = 64;
+
+    //a tile width of 0 stands for the width of the image, the tiles are then whole bands of rows
+    private static final int[] CANDIDATE_TILE_WIDTHS = {64, 256, 1024, 0};
+    private static final int[] CANDIDATE_TILE_HEIGHTS = {16, 64, 256};
+    //the part of the image the candidates are measured on, in pixels
+    private static final int TUNING_AREA = 512 * 512;
+    private static final int TUNING_ROUNDS = 3;
+
+    private final int tileWidth;
+    private final int tileHeight;
+    //false to go through getRGB/setRGB whatever the layout of the images
+    private final boolean directAccess;
+    private final RecolorKernel kernel;
+
+    public TiledRecolorEngine(int tileWidth, int tileHeight) {
+        this(tileWidth, tileHeight, true, RecolorKernel.forName("auto"));
+    }
+
+    public TiledRecolorEngine(int tileWidth, int tileHeight, boolean directAccess) {
+        this(tileWidth, tileHeight, directAccess, RecolorKernel.forName("auto"));
+    }
+
+    public TiledRecolorEngine(int tileWidth, int tileHeight, boolean directAccess, RecolorKernel kernel) {
+        if (tileWidth < 0 || tileHeight <= 0) {
+            throw new IllegalArgumentException("Invalid tile size " + tileWidth + "x" + tileHeight);
+        }
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.directAccess = directAccess;
+        this.kernel = kernel;
+    }
+
+    //"auto" to tune the tile size on the image, or the tile size as "widthxheight", where a width of 0 stands for
+    //the width of the image
+    public static TiledRecolorEngine forTileSize(String tileSize, RecolorKernel kernel, BufferedImage originalImage,
+                                                 BufferedImage resultImage) {
+        if (tileSize.equals("auto")) {
+            return autoTuned(kernel, originalImage, resultImage);
+        }
+        String[] widthAndHeight = tileSize.split("x");
+        if (widthAndHeight.length != 2) {
+            throw new IllegalArgumentException("Expected auto or widthxheight but got " + tileSize);
+        }
+        return new TiledRecolorEngine(Integer.parseInt(widthAndHeight[0]), Integer.parseInt(widthAndHeight[1]), true, kernel);
+    }
+
+    //measures every candidate tile size on a band at the top of the image, and keeps the fastest one
+    public static TiledRecolorEngine autoTuned(RecolorKernel kernel, BufferedImage originalImage, BufferedImage resultImage) {
+        int width = originalImage.getWidth();
+        int height = Math.min(originalImage.getHeight(), Math.max(1, TUNING_AREA / width));
+
+        TiledRecolorEngine fastestEngine = null;
+        long fastestTime = Long.MAX_VALUE;
+        for (int round = 0; round < TUNING_ROUNDS; round++) {
+            //the first round warms up the JIT for all the candidates, it is not counted
+            for (int candidateWidth : CANDIDATE_TILE_WIDTHS) {
+                for (int candidateHeight : CANDIDATE_TILE_HEIGHTS) {
+                    TiledRecolorEngine engine = new TiledRecolorEngine(candidateWidth, candidateHeight, true, kernel);
+                    long startTime = System.nanoTime();
+                    engine.recolorRegion(originalImage, resultImage, 0, 0, width, height);
+                    long time = System.nanoTime() - startTime;
+                    if (round > 0 && time < fastestTime) {
+                        fastestTime = time;
+                        fastestEngine = engine;
+                    }
+                }
+            }
+        }
+        return fastestEngine;
+    }
+
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    public RecolorKernel getKernel() {
+        return kernel;
+    }
+
+    @Override
+    public String toString() {
+        return (tileWidth == 0 ? "full width" : String.valueOf(tileWidth)) + "x" + tileHeight;
+    }
+
+    public void recolor(BufferedImage originalImage, BufferedImage resultImage) {
+        recolorRegion(originalImage, resultImage, 0, 0, originalImage.getWidth(), originalImage.getHeight());
+    }
+
+    //the region is clipped to the image, its tiles are recolored one band of tiles after the other
+    public void recolorRegion(BufferedImage originalImage, BufferedImage resultImage, int left, int top,
+                              int width, int height) {
+        int right = Math.min(left + width, originalImage.getWidth());
+        int bottom = Math.min(top + height, originalImage.getHeight());
+        if (right <= left || bottom <= top) {
+            return;
+        }
+        int regionTileWidth = tileWidth == 0 ? right - left : Math.min(tileWidth, right - left);
+
+        PixelAccess source = directAccess ? PixelAccess.forImage(originalImage) : PixelAccess.generic(originalImage);
+        PixelAccess result = directAccess ? PixelAccess.forImage(resultImage) : PixelAccess.generic(resultImage);
+        int[] row = new int[regionTileWidth];
+
+        for (int tileTop = top; tileTop < bottom; tileTop += tileHeight) {
+            int tileBottom = Math.min(tileTop + tileHeight, bottom);
+            for (int tileLeft = left; tileLeft < right; tileLeft += regionTileWidth) {
+                int tileRight = Math.min(tileLeft + regionTileWidth, right);
+                recolorTile(source, result, row, tileLeft, tileTop, tileRight, tileBottom);
+            }
+        }
+    }
+
+    private void recolorTile(PixelAccess source, PixelAccess result, int[] row, int left, int top,
+                             int right, int bottom) {
+        int length = right - left;
+        for (int y = top; y < bottom; y++) {
+            source.readRow(left, y, length, row);
+            kernel.recolor(row, length);
+            result.writeRow(left, y, length, row);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+//Bounds the number of requests waiting for a thread of the server's executor.
+
+//Without a bound, an overloaded server keeps queueing requests it cannot serve in time, so latency and the heap
+//grow without limits. Here, when the queue is full a request is not queued at all, and a request that waited
+//longer than the deadline is not worth computing anymore, since the client most likely gave up on it.
+//In both cases the request is still executed, but the handler sees it was shed (see isShed)
+//and answers 503 right away instead of doing the work.
+
+//The rejected requests are not run on the calling thread, the single dispatcher of the HttpServer or an event loop
+//of the NioHttpServer: the task of a JDK exchange starts by reading the request from the client (blocking),
+//and the routes which are never shed (/metrics, /reload) run their whole handler, so a single slow client
+//would stall every connection. They go to a small executor of their own, SHED_THREADS threads and a queue
+//of SHED_QUEUE_DEPTH tasks, where a slow client only holds up the other rejected requests.
+//When that queue is full too, execute throws RejectedExecutionException and the request is dropped:
+//the HttpServer closes the connection, the NioHttpServer answers 503 from its event loop (no I/O to wait for).
+
+//When timed, it also measures how long the requests waited for a thread, and how long the threads were busy,
+//which over a period of time and divided by the number of threads gives the utilization of the executor.
+
+public class AdmissionControl implements Executor {
+    private static final ThreadLocal<Boolean> SHED = new ThreadLocal<>();
+    private static final int SHED_THREADS = 2;
+    //a rejected task is little more than a connection, the shed threads get through them fast
+    private static final int SHED_QUEUE_DEPTH = 1024;
+
+    private final Executor executor;
+    private final ThreadPoolExecutor shedExecutor;
+    private final int maxQueueDepth;
+    private final long deadlineNanos;
+    //null when not timed
+    private final StripedLatencyHistogram queueWait;
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final LongAccumulator peakQueueDepth = new LongAccumulator(Math::max, 0);
+    private final LongAdder admittedRequests = new LongAdder();
+    private final LongAdder rejectedRequests = new LongAdder();
+    private final LongAdder expiredRequests = new LongAdder();
+    private final LongAdder droppedRequests = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+
+    public AdmissionControl(Executor executor, int maxQueueDepth, long deadlineMillis, boolean timed) {
+        this.executor = executor;
+        this.maxQueueDepth = maxQueueDepth;
+        this.deadlineNanos = deadlineMillis * 1_000_000;
+        this.shedExecutor = new ThreadPoolExecutor(SHED_THREADS, SHED_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(SHED_QUEUE_DEPTH), runnable -> {
+                    Thread thread = new Thread(runnable, "shed");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.queueWait = timed ? new StripedLatencyHistogram() : null;
+    }
+
+    //true if the request being handled by the current thread should be answered with 503
+    public static boolean isShed() {
+        return SHED.get() == Boolean.TRUE;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        int depth = queueDepth.incrementAndGet();
+        if (depth > maxQueueDepth) {
+            queueDepth.decrementAndGet();
+            rejectedRequests.increment();
+            try {
+                shedExecutor.execute(() -> runShed(task));
+            } catch (RejectedExecutionException e) {
+                droppedRequests.increment();
+                throw e;
+            }
+            return;
+        }
+        peakQueueDepth.accumulate(depth);
+
+        long enqueueTime = System.nanoTime();
+        executor.execute(() -> {
+            queueDepth.decrementAndGet();
+            long startTime = System.nanoTime();
+            if (startTime - enqueueTime > deadlineNanos) {
+                expiredRequests.increment();
+                runShed(task);
+            } else {
+                admittedRequests.increment();
+                task.run();
+            }
+            if (queueWait != null) {
+                recordTask(startTime, enqueueTime);
+            }
+        });
+    }
+
+    //called once a queued task is done, reads the clock for its end
+    void recordTask(long startTime, long enqueueTime) {
+        queueWait.recordValue(startTime - enqueueTime);
+        busyNanos.add(System.nanoTime() - startTime);
+    }
+
+    private static void runShed(Runnable task) {
+        SHED.set(Boolean.TRUE);
+        try {
+            task.run();
+        } finally {
+            SHED.remove();
+        }
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+
+    public long getAdmittedRequests() {
+        return admittedRequests.sum();
+    }
+
+    public long getRejectedRequests() {
+        return rejectedRequests.sum();
+    }
+
+    public long getExpiredRequests() {
+        return expiredRequests.sum();
+    }
+
+    //the rejected requests which did not fit in the queue of the shed executor either
+    public long getDroppedRequests() {
+        return droppedRequests.sum();
+    }
+
+    public boolean isTimed() {
+        return queueWait != null;
+    }
+
+    //fills the given histogram and returns it, null when not timed
+    public LatencyHistogram getQueueWait(LatencyHistogram snapshot) {
+        return queueWait == null ? null : queueWait.snapshot(snapshot);
+    }
+
+    //the time spent running the queued requests by all the threads of the executor together, 0 when not timed
+    public long getBusyNanos() {
+        return busyNanos.sum();
+    }
+}
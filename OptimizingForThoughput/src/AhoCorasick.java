@@ -0,0 +1,175 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+//Counts the occurrences of many words with a single pass over the book, using the Aho-Corasick automaton.
+
+//The words are put in a trie, and every state of the trie gets a failure link to the state of the longest
+//proper suffix of its path which is also in the trie. Following the failure links while building a full
+//transition table turns the trie into an automaton which reads every byte of the text exactly once.
+
+//Counting is done in two steps: the pass over the text only counts how many times every state was visited,
+//and after the pass every visit is passed down the failure links, since visiting a state means that all the words
+//which are suffixes of its path (e.g. "he" for "she") have just been seen as well.
+//Like the other engines this counts overlapping matches.
+
+//To keep the transition table small the bytes are mapped to classes first: every byte used by the words
+//gets its own class and all the other bytes share class 0, which can never continue a match.
+
+//The words come from the client, so the size of a full transition table (states times classes) is up to it:
+//16 KB of words using every byte would make a table of 16 MB. The trie is therefore kept sparse, a list
+//of children per state, and the full table is only built when it has at most MAX_TABLE_SIZE entries.
+//Above that the pass over the text follows the trie and the failure links instead, with the transitions
+//of the root (the state the text mostly stays in) in a table of their own.
+
+public class AhoCorasick {
+    //1 MB of transitions
+    private static final int MAX_TABLE_SIZE = 1 << 18;
+
+    private final int[] byteClasses = new int[256];
+    private final int numberOfClasses;
+    //the children of every state as a linked list: the first child, the next child of the same parent,
+    //and the class leading to the child, 0 marks a missing child since the root is never a child
+    private final int[] firstChild;
+    private final int[] nextSibling;
+    private final int[] childClass;
+    //rootTransitions[class] is the next state from the root
+    private final int[] rootTransitions;
+    //transitions[state * numberOfClasses + class] is the next state, null when the table would be too large
+    private final int[] transitions;
+    private final int[] failureLinks;
+    //the states in the order of their depth in the trie, so every failure link points to an earlier state
+    private final int[] statesByDepth;
+    //the state reached at the end of every word
+    private final int[] wordStates;
+    private final int numberOfStates;
+
+    public AhoCorasick(List<byte[]> words) {
+        int numberOfClasses = 1;
+        int maxStates = 1;
+        for (byte[] word : words) {
+            maxStates += word.length;
+            for (byte b : word) {
+                if (byteClasses[b & 0xFF] == 0) {
+                    byteClasses[b & 0xFF] = numberOfClasses++;
+                }
+            }
+        }
+        this.numberOfClasses = numberOfClasses;
+
+        //build the trie
+        firstChild = new int[maxStates];
+        nextSibling = new int[maxStates];
+        childClass = new int[maxStates];
+        int states = 1;
+        wordStates = new int[words.size()];
+        for (int wordIndex = 0; wordIndex < words.size(); wordIndex++) {
+            int state = 0;
+            for (byte b : words.get(wordIndex)) {
+                int byteClass = byteClasses[b & 0xFF];
+                int next = child(state, byteClass);
+                if (next == 0) {
+                    next = states++;
+                    childClass[next] = byteClass;
+                    nextSibling[next] = firstChild[state];
+                    firstChild[state] = next;
+                }
+                state = next;
+            }
+            wordStates[wordIndex] = state;
+        }
+        numberOfStates = states;
+
+        rootTransitions = new int[numberOfClasses];
+        for (int child = firstChild[0]; child != 0; child = nextSibling[child]) {
+            rootTransitions[childClass[child]] = child;
+        }
+
+        //breadth first, fill in the failure links, the failure link of a child is where the failure link
+        //of its parent goes with the same class
+        failureLinks = new int[numberOfStates];
+        statesByDepth = new int[numberOfStates];
+        int head = 0;
+        int tail = 0;
+        statesByDepth[tail++] = 0;
+        while (head < tail) {
+            int state = statesByDepth[head++];
+            for (int child = firstChild[state]; child != 0; child = nextSibling[child]) {
+                failureLinks[child] = state == 0 ? 0 : next(failureLinks[state], childClass[child]);
+                statesByDepth[tail++] = child;
+            }
+        }
+
+        //the full table, in the same order, so the row of the failure link of a state is always filled
+        if ((long) numberOfStates * numberOfClasses > MAX_TABLE_SIZE) {
+            transitions = null;
+            return;
+        }
+        transitions = new int[numberOfStates * numberOfClasses];
+        System.arraycopy(rootTransitions, 0, transitions, 0, numberOfClasses);
+        for (int i = 1; i < numberOfStates; i++) {
+            int state = statesByDepth[i];
+            System.arraycopy(transitions, failureLinks[state] * numberOfClasses,
+                    transitions, state * numberOfClasses, numberOfClasses);
+            for (int child = firstChild[state]; child != 0; child = nextSibling[child]) {
+                transitions[state * numberOfClasses + childClass[child]] = child;
+            }
+        }
+    }
+
+    //the child of the state for the class, 0 if there is none
+    private int child(int state, int byteClass) {
+        for (int child = firstChild[state]; child != 0; child = nextSibling[child]) {
+            if (childClass[child] == byteClass) {
+                return child;
+            }
+        }
+        return 0;
+    }
+
+    //the next state from the state for the class, following the failure links while the state has no such child
+    private int next(int state, int byteClass) {
+        while (state != 0) {
+            int child = child(state, byteClass);
+            if (child != 0) {
+                return child;
+            }
+            state = failureLinks[state];
+        }
+        return rootTransitions[byteClass];
+    }
+
+    //returns the number of occurrences of every word, in the order of the words given to the constructor
+    public long[] countOccurrences(Corpus corpus) {
+        long[] visits = new long[numberOfStates];
+
+        //the state carries over from one segment to the next, so matches crossing a segment boundary are found
+        int state = 0;
+        for (int segmentIndex = 0; segmentIndex < corpus.numberOfSegments(); segmentIndex++) {
+            ByteBuffer segment = corpus.segment(segmentIndex);
+            int segmentLength = corpus.segmentLength(segmentIndex);
+            if (transitions != null) {
+                for (int i = 0; i < segmentLength; i++) {
+                    state = transitions[state * numberOfClasses + byteClasses[segment.get(i) & 0xFF]];
+                    visits[state]++;
+                }
+            } else {
+                for (int i = 0; i < segmentLength; i++) {
+                    state = next(state, byteClasses[segment.get(i) & 0xFF]);
+                    visits[state]++;
+                }
+            }
+        }
+
+        //deepest states first, so a state has all its visits before they are passed down its failure link
+        for (int i = numberOfStates - 1; i > 0; i--) {
+            int s = statesByDepth[i];
+            visits[failureLinks[s]] += visits[s];
+        }
+
+        long[] counts = new long[wordStates.length];
+        for (int wordIndex = 0; wordIndex < wordStates.length; wordIndex++) {
+            counts[wordIndex] = visits[wordStates[wordIndex]];
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,99 @@
+import java.lang.management.ManagementFactory;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+//Checks that the hot path of a /search request served from the index allocates nothing once it is warmed up:
+//decoding the word from the raw query, the index lookup and encoding the response.
+//And that the count engines allocate nothing either when they scan the book for a word again
+//(every chunk of a parallel scan, every request which misses the cache).
+
+//The allocations are measured with the per thread allocation counter of the HotSpot JVM.
+//Run it from the OptimizingForThoughput directory, it exits with status 1 if anything was allocated.
+
+public class AllocationCheck {
+    private static final String INPUT_FILE = "./resources/war_and_peace.txt";
+    private static final String WORDS_FILE = "./resources/search_words.csv";
+    private static final int WARMUP_ITERATIONS = 50;
+    private static final int MEASURED_ITERATIONS = 20;
+
+    public static void main(String[] args) throws Exception {
+        WordIndex index = WordIndex.build(Corpus.map(Paths.get(INPUT_FILE)));
+
+        List<String> words = Files.readAllLines(Paths.get(WORDS_FILE));
+        String[] rawQueries = new String[words.size()];
+        for (int i = 0; i < rawQueries.length; i++) {
+            rawQueries[i] = "word=" + URLEncoder.encode(words.get(i), "UTF-8");
+        }
+
+        byte[] word = new byte[Corpus.MAX_WORD_LENGTH];
+        byte[] response = new byte[SearchCodec.MAX_RESPONSE_LENGTH];
+
+        //give the JIT the time to compile (and inline) the whole path
+        long checksum = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            checksum += serveAll(rawQueries, index, word, response);
+        }
+
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        //the first call may allocate by itself, call it once before measuring
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            checksum += serveAll(rawQueries, index, word, response);
+        }
+
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        long requests = (long) MEASURED_ITERATIONS * rawQueries.length;
+
+        System.out.println(String.format("%d requests, %d bytes allocated, %.3f bytes per request (checksum %d)",
+                requests, allocated, (double) allocated / requests, checksum));
+
+        boolean scansAllocated = false;
+        Corpus corpus = Corpus.map(Paths.get(INPUT_FILE));
+        byte[] scannedWord = "Petersburg".getBytes("UTF-8");
+        for (String engineName : new String[]{"indexof", "horspool", "swar"}) {
+            CountEngine engine = CountEngine.forName(engineName);
+            long scanChecksum = 0;
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                scanChecksum += scanAll(corpus, engine, scannedWord);
+            }
+            long scanAllocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                scanChecksum += scanAll(corpus, engine, scannedWord);
+            }
+            long scanAllocated = threadMXBean.getThreadAllocatedBytes(threadId) - scanAllocatedBefore;
+            System.out.println(String.format("%s: %d scans, %d bytes allocated (checksum %d)",
+                    engineName, MEASURED_ITERATIONS, scanAllocated, scanChecksum));
+            scansAllocated |= scanAllocated > 0;
+        }
+
+        if (allocated > 0 || scansAllocated) {
+            System.exit(1);
+        }
+    }
+
+    private static long scanAll(Corpus corpus, CountEngine engine, byte[] word) {
+        long count = 0;
+        for (int segmentIndex = 0; segmentIndex < corpus.numberOfSegments(); segmentIndex++) {
+            count += engine.count(corpus.segment(segmentIndex), 0, corpus.segmentLength(segmentIndex), word);
+        }
+        return count;
+    }
+
+    private static long serveAll(String[] rawQueries, WordIndex index, byte[] word, byte[] response) {
+        long checksum = 0;
+        for (String rawQuery : rawQueries) {
+            int wordLength = SearchCodec.decodeWord(rawQuery, word);
+            if (wordLength < 0 || !WordIndex.isSingleTerm(word, wordLength)) {
+                continue;
+            }
+            long count = index.count(word, wordLength);
+            checksum += SearchCodec.encodeDecimal(count, response);
+        }
+        return checksum;
+    }
+}
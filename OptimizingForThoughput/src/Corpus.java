@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+//The book as raw UTF-8 bytes, searched without ever decoding it into a String.
+
+//The "mmap" backend maps the file into memory with FileChannel.map, so the text lives in the page cache
+//and not on the Java heap, no matter how big the file is. A single mapping cannot be larger than 2GB,
+//so the file is mapped in segments. Every segment is mapped with MAX_WORD_LENGTH - 1 extra bytes past its end,
+//which means that a match starting in one segment and ending in the next one is still found inside a single buffer.
+
+//A mapping shows the file as it is now, not as it was when mapped: rewritten in place, the file changes under
+//the requests still scanning the mapping, and truncated, it makes them fail (SIGBUS, an InternalError in Java).
+//So load maps a private snapshot of the file instead: a copy in the temporary directory, deleted right after
+//it is mapped. Nothing else can open it anymore, so the mapping never changes, and the system frees its disk space
+//once the mapping is garbage collected. The file itself can then be changed in any way while it is served.
+
+//The "heap" backend reads the whole file into a single byte array, which is only possible for files under 2GB.
+
+public class Corpus {
+    public static final int MAX_WORD_LENGTH = 4096;
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final ByteBuffer[] segments;
+    //the number of bytes of every segment that do not belong to the overlap with the next segment
+    private final int[] segmentLengths;
+    private final long length;
+
+    private Corpus(ByteBuffer[] segments, int[] segmentLengths, long length) {
+        this.segments = segments;
+        this.segmentLengths = segmentLengths;
+        this.length = length;
+    }
+
+    //the text of the file as it is now, which stays the same whatever happens to the file afterwards
+    public static Corpus load(Path path, String backend) throws IOException {
+        if (backend.equals("mmap")) {
+            return mapSnapshot(path);
+        } else if (backend.equals("heap")) {
+            return read(path);
+        }
+        throw new IllegalArgumentException("Unknown corpus backend " + backend + ", expected mmap or heap");
+    }
+
+    public static Corpus map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            int numberOfSegments = (int) Math.max(1, (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+
+            ByteBuffer[] segments = new ByteBuffer[numberOfSegments];
+            int[] segmentLengths = new int[numberOfSegments];
+            for (int i = 0; i < numberOfSegments; i++) {
+                long start = i * SEGMENT_SIZE;
+                long end = Math.min(start + SEGMENT_SIZE, length);
+                long mappedEnd = Math.min(end + MAX_WORD_LENGTH - 1, length);
+
+                //the mapping stays valid after the channel is closed
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, mappedEnd - start);
+                segmentLengths[i] = (int) (end - start);
+            }
+            return new Corpus(segments, segmentLengths, length);
+        }
+    }
+
+    public static Corpus mapSnapshot(Path path) throws IOException {
+        Path snapshot = Files.createTempFile("corpus-", ".snapshot");
+        try {
+            Files.copy(path, snapshot, StandardCopyOption.REPLACE_EXISTING);
+            return map(snapshot);
+        } finally {
+            //the mapping keeps the data of the deleted file; where a mapped file cannot be deleted, it goes at exit
+            try {
+                Files.delete(snapshot);
+            } catch (IOException e) {
+                snapshot.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    public static Corpus read(Path path) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        return new Corpus(new ByteBuffer[]{ByteBuffer.wrap(bytes)}, new int[]{bytes.length}, bytes.length);
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public int numberOfSegments() {
+        return segments.length;
+    }
+
+    //absolute gets on the returned buffer are safe to use from many threads at the same time
+    public ByteBuffer segment(int segmentIndex) {
+        return segments[segmentIndex];
+    }
+
+    public int segmentLength(int segmentIndex) {
+        return segmentLengths[segmentIndex];
+    }
+
+    //counts every occurrence of the word in the text, including overlapping ones, like the String.indexOf loop did
+    public long countOccurrences(byte[] word, CountEngine engine) {
+        if (word.length == 0 || word.length > MAX_WORD_LENGTH) {
+            throw new IllegalArgumentException("Word length must be between 1 and " + MAX_WORD_LENGTH);
+        }
+
+        long count = 0;
+        for (int i = 0; i < segments.length; i++) {
+            count += engine.count(segments[i], 0, segmentLengths[i], word);
+        }
+        return count;
+    }
+}
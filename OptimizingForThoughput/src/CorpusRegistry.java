@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+//The named corpora served by the server, every one of them loaded from its own file.
+
+//Loading a corpus (mapping the file, building its index) happens on a background thread, the request threads
+//never wait for it. Once a new version is ready it is published with copy on write: a new array of documents
+//is built and swapped in with a single volatile write. Requests read the array without any lock,
+//and the requests which already picked the old version finish with it.
+//A reload asked for while another reload of the same corpus is still waiting for the loading thread joins it
+//instead of queuing one more, so the queue holds at most one reload per corpus whatever the clients send.
+
+public class CorpusRegistry {
+    //builds a Document out of a file, called on the loading thread
+    public interface Loader {
+        Document load(String name, Path path, long version) throws IOException;
+    }
+
+    private final Map<String, Path> paths;
+    private final String defaultName;
+    private final Loader loader;
+    private final ExecutorService loadingExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "corpus-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong lastVersion = new AtomicLong();
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder failedReloads = new LongAdder();
+    private final LongAdder coalescedReloads = new LongAdder();
+    //the reloads queued and not started yet, by corpus name
+    private final ConcurrentHashMap<String, CompletableFuture<Document>> pendingReloads = new ConcurrentHashMap<>();
+    //replaced as a whole on every publication, never modified in place
+    private volatile Document[] documents = new Document[0];
+
+    //the first corpus is the one served when a request does not name one
+    public CorpusRegistry(Map<String, Path> paths, Loader loader) {
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("At least one corpus is needed");
+        }
+        this.paths = Collections.unmodifiableMap(new LinkedHashMap<>(paths));
+        this.defaultName = paths.keySet().iterator().next();
+        this.loader = loader;
+    }
+
+    //parses "name=path,name=path", the names may only use letters, digits, '_' and '-'
+    public static Map<String, Path> parse(String corpora) {
+        Map<String, Path> paths = new LinkedHashMap<>();
+        for (String corpus : corpora.split(",")) {
+            String[] nameAndPath = corpus.split("=", 2);
+            if (nameAndPath.length != 2 || !nameAndPath[0].matches("[A-Za-z0-9_-]+")) {
+                throw new IllegalArgumentException("Expected name=path but got " + corpus);
+            }
+            paths.put(nameAndPath[0], Paths.get(nameAndPath[1]));
+        }
+        return paths;
+    }
+
+    public Map<String, Path> getPaths() {
+        return paths;
+    }
+
+    public String getDefaultName() {
+        return defaultName;
+    }
+
+    //the current version of the corpus, null if it is unknown or not loaded yet
+    public Document get(String name) {
+        for (Document document : documents) {
+            if (document.getName().equals(name)) {
+                return document;
+            }
+        }
+        return null;
+    }
+
+    //the same lookup with the name given as text[start, end), so the request threads do not allocate
+    public Document get(CharSequence text, int start, int end) {
+        for (Document document : documents) {
+            if (regionEquals(text, start, end, document.getName())) {
+                return document;
+            }
+        }
+        return null;
+    }
+
+    private static boolean regionEquals(CharSequence text, int start, int end, String name) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (text.charAt(start + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Document getDefault() {
+        return get(defaultName);
+    }
+
+    public Document[] getDocuments() {
+        return documents;
+    }
+
+    public long getReloads() {
+        return reloads.sum();
+    }
+
+    public long getFailedReloads() {
+        return failedReloads.sum();
+    }
+
+    public long getCoalescedReloads() {
+        return coalescedReloads.sum();
+    }
+
+    //loads the corpus again from its file in the background and publishes it once it is ready;
+    //if a reload of the corpus is already queued, returns that one
+    public CompletableFuture<Document> reload(String name) {
+        Path path = paths.get(name);
+        if (path == null) {
+            throw new IllegalArgumentException("Unknown corpus " + name);
+        }
+
+        CompletableFuture<Document> loaded = new CompletableFuture<>();
+        CompletableFuture<Document> queued = pendingReloads.putIfAbsent(name, loaded);
+        if (queued != null) {
+            coalescedReloads.increment();
+            return queued;
+        }
+        loadingExecutor.execute(() -> {
+            //from now on the file is read, a reload asked for after this point reads it again
+            pendingReloads.remove(name, loaded);
+            try {
+                Document document = loader.load(name, path, lastVersion.incrementAndGet());
+                publish(document);
+                reloads.increment();
+                loaded.complete(document);
+            } catch (IOException | RuntimeException e) {
+                failedReloads.increment();
+                loaded.completeExceptionally(e);
+            }
+        });
+        return loaded;
+    }
+
+    //only the loading thread publishes, the lock just makes the copy on write safe on its own
+    private synchronized void publish(Document document) {
+        Document[] current = documents;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].getName().equals(document.getName())) {
+                Document[] updated = Arrays.copyOf(current, current.length);
+                updated[i] = document;
+                documents = updated;
+                return;
+            }
+        }
+        Document[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = document;
+        documents = updated;
+    }
+}
@@ -0,0 +1,190 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+//A strategy for counting the occurrences of a word inside the bytes of the book.
+
+//All the engines count overlapping matches (e.g. "aa" is found 3 times in "aaaa"), exactly like the
+//original String.indexOf loop which moved forward by a single character after every match,
+//so switching the engine never changes the response, only the time it takes to compute it.
+
+//The engine is chosen with -Dcount.engine=auto|indexof|horspool|swar, auto being the default.
+
+public interface CountEngine {
+
+    //counts the matches that start at a position in [from, to) of the text,
+    //a match may continue past "to" up to the limit of the buffer
+    long count(ByteBuffer text, int from, int to, byte[] word);
+
+    static CountEngine forName(String name) {
+        switch (name) {
+            case "auto":
+                return new AutoEngine();
+            case "indexof":
+                return new IndexOfEngine();
+            case "horspool":
+                return new HorspoolEngine();
+            case "swar":
+                return new SwarEngine();
+            default:
+                throw new IllegalArgumentException("Unknown count engine " + name + ", expected auto, indexof, horspool or swar");
+        }
+    }
+
+    //the same algorithm String.indexOf uses: look for the first byte, then check the rest of the word
+    class IndexOfEngine implements CountEngine {
+        @Override
+        public long count(ByteBuffer text, int from, int to, byte[] word) {
+            int lastStart = Math.min(to, text.limit() - word.length + 1);
+            byte first = word[0];
+
+            long count = 0;
+            for (int i = from; i < lastStart; i++) {
+                if (text.get(i) == first && matchesAt(text, i, word)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    //Boyer-Moore-Horspool: compares the window from its last byte and, on a mismatch or a match,
+    //shifts the window by the distance from the last occurrence of the window's last byte in the word.
+    //The shift never skips a position where the word could start, so overlapping matches are still found.
+    //The table of the shifts belongs to the thread and is only built again when the word changes, so the chunks
+    //of a parallel scan, and the requests for the same word, neither allocate nor fill it again.
+    class HorspoolEngine implements CountEngine {
+        private static final ThreadLocal<ShiftTable> SHIFT_TABLES = ThreadLocal.withInitial(ShiftTable::new);
+
+        @Override
+        public long count(ByteBuffer text, int from, int to, byte[] word) {
+            int wordLength = word.length;
+            int lastStart = Math.min(to, text.limit() - wordLength + 1);
+            int[] shifts = SHIFT_TABLES.get().shiftsFor(word);
+
+            byte last = word[wordLength - 1];
+            long count = 0;
+            int position = from;
+            while (position < lastStart) {
+                byte windowLast = text.get(position + wordLength - 1);
+                if (windowLast == last && matchesAt(text, position, word)) {
+                    count++;
+                }
+                position += shifts[windowLast & 0xFF];
+            }
+            return count;
+        }
+
+        private static class ShiftTable {
+            private final int[] shifts = new int[256];
+            //the word the shifts were built for, a copy since the caller may reuse its array
+            private byte[] word = new byte[0];
+            private int wordLength = -1;
+
+            int[] shiftsFor(byte[] newWord) {
+                if (isBuiltFor(newWord)) {
+                    return shifts;
+                }
+                int newWordLength = newWord.length;
+                Arrays.fill(shifts, newWordLength);
+                for (int i = 0; i < newWordLength - 1; i++) {
+                    shifts[newWord[i] & 0xFF] = newWordLength - 1 - i;
+                }
+                if (word.length < newWordLength) {
+                    word = new byte[newWordLength];
+                }
+                System.arraycopy(newWord, 0, word, 0, newWordLength);
+                wordLength = newWordLength;
+                return shifts;
+            }
+
+            private boolean isBuiltFor(byte[] newWord) {
+                if (newWord.length != wordLength) {
+                    return false;
+                }
+                for (int i = 0; i < wordLength; i++) {
+                    if (word[i] != newWord[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+    //SIMD within a register: compares 8 bytes at a time against the first byte of the word
+    //using plain long arithmetic, and only checks the rest of the word where the first byte matched.
+    //Most of the book does not start a match, so most of the time is spent skipping 8 bytes per step.
+    class SwarEngine implements CountEngine {
+        private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+        @Override
+        public long count(ByteBuffer text, int from, int to, byte[] word) {
+            int lastStart = Math.min(to, text.limit() - word.length + 1);
+            byte first = word[0];
+            long pattern = (first & 0xFFL) * 0x0101010101010101L;
+            boolean bigEndian = text.order() == ByteOrder.BIG_ENDIAN;
+
+            long count = 0;
+            int position = from;
+            //the 8 byte block may read past lastStart but never past the limit of the buffer
+            while (position + Long.BYTES <= lastStart) {
+                long matches = zeroBytes(text.getLong(position) ^ pattern);
+                while (matches != 0) {
+                    int offset;
+                    if (bigEndian) {
+                        offset = Long.numberOfLeadingZeros(matches) >>> 3;
+                        matches &= ~(0x8000000000000000L >>> (offset << 3));
+                    } else {
+                        offset = Long.numberOfTrailingZeros(matches) >>> 3;
+                        matches &= matches - 1;
+                    }
+                    if (matchesAt(text, position + offset, word)) {
+                        count++;
+                    }
+                }
+                position += Long.BYTES;
+            }
+
+            //the tail which does not fill a whole block
+            for (; position < lastStart; position++) {
+                if (text.get(position) == first && matchesAt(text, position, word)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        //sets the high bit of every byte of the value which is zero, and only of those
+        private static long zeroBytes(long value) {
+            long t = (value & LOW_SEVEN_BITS) + LOW_SEVEN_BITS;
+            return ~(t | value | LOW_SEVEN_BITS);
+        }
+    }
+
+    //short words give Horspool small shifts, so they go to the block scanner,
+    //longer words let Horspool skip most of the text (on war_and_peace.txt the two break even at about 8 bytes)
+    class AutoEngine implements CountEngine {
+        private static final int HORSPOOL_MIN_WORD_LENGTH = 8;
+
+        private final CountEngine swar = new SwarEngine();
+        private final CountEngine horspool = new HorspoolEngine();
+
+        @Override
+        public long count(ByteBuffer text, int from, int to, byte[] word) {
+            if (word.length < HORSPOOL_MIN_WORD_LENGTH) {
+                return swar.count(text, from, to, word);
+            }
+            return horspool.count(text, from, to, word);
+        }
+    }
+
+    static boolean matchesAt(ByteBuffer text, int position, byte[] word) {
+        for (int j = 0; j < word.length; j++) {
+            if (text.get(position + j) != word[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
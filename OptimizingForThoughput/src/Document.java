@@ -0,0 +1,45 @@
+//One version of a named corpus, together with everything built from it: its word index and the cache of its counts.
+
+//A Document never changes once it is published by the CorpusRegistry. A reload builds a whole new Document,
+//so a request which picked a Document at its start sees the same text, index and cache until it ends,
+//and the old version (the mapping of the file included) is garbage collected once no request uses it anymore.
+//The text is a snapshot of the file (see Corpus.load), so this holds however the file is changed,
+//rewritten in place and truncated included; ReloadIsolationCheck verifies it.
+
+public class Document {
+    private final String name;
+    private final long version;
+    private final Corpus corpus;
+    //null when running in substring mode
+    private final WordIndex index;
+    //null when the cache is turned off
+    private final ResultCache cache;
+
+    public Document(String name, long version, Corpus corpus, WordIndex index, ResultCache cache) {
+        this.name = name;
+        this.version = version;
+        this.corpus = corpus;
+        this.index = index;
+        this.cache = cache;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public Corpus getCorpus() {
+        return corpus;
+    }
+
+    public WordIndex getIndex() {
+        return index;
+    }
+
+    public ResultCache getCache() {
+        return cache;
+    }
+}
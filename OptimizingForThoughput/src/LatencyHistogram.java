@@ -0,0 +1,128 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//A histogram of latencies with a bounded relative error, in the spirit of HdrHistogram.
+
+//Values under 256 get a bucket each. Above that, every power of two range is split into 128 linear buckets,
+//so a value is off by less than 1% (1/128) from the bucket it is counted in, whatever its magnitude,
+//and the whole range of a long fits in about 7500 counters. Recording is a couple of shifts and an increment.
+
+//Not thread safe: every thread records into its own histogram, and the histograms are added together to be read.
+
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    private static final int NUMBER_OF_BUCKETS = SUB_BUCKET_COUNT + (64 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT;
+
+    private final long[] counts = new long[NUMBER_OF_BUCKETS];
+    private long totalCount;
+    private long sum;
+    private long max;
+
+    public void recordValue(long value) {
+        recordValues(value, 1);
+    }
+
+    //Corrects for coordinated omission: a client that waits for every response before sending the next request
+    //does not send the requests it should have sent while a slow response was being waited for.
+    //Those would have waited too, for less and less time, so they are recorded as well,
+    //one every expectedInterval (the interval at which the client meant to send the requests).
+    public void recordValueWithExpectedInterval(long value, long expectedInterval) {
+        recordValue(value);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        for (long missedValue = value - expectedInterval; missedValue >= expectedInterval; missedValue -= expectedInterval) {
+            recordValue(missedValue);
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    //adds the counts of buckets kept elsewhere, otherCounts[offset + bucket] for the first numberOfBuckets buckets,
+    //the values they count go to addSumAndMax (see StripedLatencyHistogram)
+    void addCounts(AtomicLongArray otherCounts, int offset, int numberOfBuckets) {
+        for (int i = 0; i < numberOfBuckets; i++) {
+            long count = otherCounts.get(offset + i);
+            counts[i] += count;
+            totalCount += count;
+        }
+    }
+
+    void addSumAndMax(long otherSum, long otherMax) {
+        sum += otherSum;
+        max = Math.max(max, otherMax);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : (double) sum / totalCount;
+    }
+
+    //the highest value of the bucket holding the value at the given percentile (0 to 100)
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            count += counts[i];
+            if (count >= countAtPercentile) {
+                return Math.min(highestValueOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    private void recordValues(long value, long numberOfValues) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Latency cannot be negative: " + value);
+        }
+        counts[bucketOf(value)] += numberOfValues;
+        totalCount += numberOfValues;
+        sum += value * numberOfValues;
+        max = Math.max(max, value);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        //keep the top SUB_BUCKET_BITS bits of the value, the highest one of them being always set
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_HALF_COUNT;
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + subBucket;
+    }
+
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        long subBucket = (bucket - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
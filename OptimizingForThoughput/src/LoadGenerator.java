@@ -0,0 +1,341 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//A load generator for ThroughputHttpServer which replays the words of search_words.csv,
+//so the server can be measured without JMeter and with more than averages.
+
+//Every configuration given on the command line is a comma separated list of server properties,
+//and gets its own server process, so the JIT and the heap of one run do not leak into the next one:
+//  java -cp out/production/OptimizingForThoughput LoadGenerator server.executor=fixed server.executor=virtual,count.engine=swar
+//Without arguments every executor, and every count engine (with the fixed executor), is measured in substring mode.
+//The two front ends are compared with server.frontend=jdk server.frontend=nio.
+//Run it from the OptimizingForThoughput directory.
+
+//Two load models are supported, chosen with -Dload.mode:
+//  closed - every user sends the next request as soon as it got the previous response (like the JMeter plan).
+//           The load backs off as soon as the server slows down, which hides exactly the latency we want to see.
+//           With -Dload.rate every user is paced to its share of the rate, and the requests it could not send
+//           while waiting on a slow response are recorded as well (see LatencyHistogram).
+//           Without a rate there is no intended send time to correct from: the latencies are not corrected
+//           for coordinated omission, and the report says so.
+//  open   - the requests arrive at a constant rate (-Dload.rate, per second) whatever the server does,
+//           and the latency is measured from the time a request was meant to be sent, not from the time it was.
+//The other settings are -Dload.users (200), -Dload.warmup.s (5) and -Dload.duration.s (20).
+
+public class LoadGenerator {
+    private static final String WORDS_FILE = "./resources/search_words.csv";
+    private static final String HOST = "localhost";
+    private static final int PORT = 8000;
+
+    private static final String MODE = System.getProperty("load.mode", "closed");
+    private static final int NUMBER_OF_USERS = Integer.getInteger("load.users", 200);
+    private static final int RATE = Integer.getInteger("load.rate", 0);
+    private static final int WARMUP_SECONDS = Integer.getInteger("load.warmup.s", 5);
+    private static final int DURATION_SECONDS = Integer.getInteger("load.duration.s", 20);
+
+    private static final List<String> DEFAULT_CONFIGURATIONS = Arrays.asList(
+            "search.mode=substring,server.executor=fixed",
+            "search.mode=substring,server.executor=workstealing",
+            "search.mode=substring,server.executor=virtual",
+            "search.mode=substring,server.executor=fixed,count.engine=indexof",
+            "search.mode=substring,server.executor=fixed,count.engine=horspool",
+            "search.mode=substring,server.executor=fixed,count.engine=swar");
+
+    public static void main(String[] args) throws Exception {
+        if (!MODE.equals("closed") && !MODE.equals("open")) {
+            throw new IllegalArgumentException("Unknown load mode " + MODE + ", expected closed or open");
+        }
+        if (MODE.equals("open") && RATE <= 0) {
+            throw new IllegalArgumentException("The open mode needs a rate, set -Dload.rate");
+        }
+
+        List<String> configurations = args.length > 0 ? Arrays.asList(args) : DEFAULT_CONFIGURATIONS;
+        List<String> requests = toRequests(Files.readAllLines(Paths.get(WORDS_FILE)));
+
+        List<String> report = new ArrayList<>();
+        for (String configuration : configurations) {
+            Process server = startServer(configuration);
+            try {
+                if (!waitForServer(server)) {
+                    report.add(String.format("%s%n    failed to start", configuration));
+                    continue;
+                }
+                report.add(String.format("%s%n    %s", configuration, run(requests)));
+            } finally {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("%s load, %d users%s, %d s measured after %d s of warm up",
+                MODE, NUMBER_OF_USERS, RATE > 0 ? ", " + RATE + " requests/s" : "", DURATION_SECONDS, WARMUP_SECONDS));
+        if (RATE <= 0) {
+            System.out.println("no rate: the latencies are not corrected for coordinated omission");
+        }
+        for (String line : report) {
+            System.out.println(line);
+        }
+    }
+
+    private static List<String> toRequests(List<String> words) throws UnsupportedEncodingException {
+        List<String> requests = new ArrayList<>(words.size());
+        for (String word : words) {
+            requests.add("GET /search?word=" + URLEncoder.encode(word, "UTF-8") + " HTTP/1.1\r\n"
+                    + "Host: " + HOST + ":" + PORT + "\r\n\r\n");
+        }
+        return requests;
+    }
+
+    private static Process startServer(String configuration) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String property : configuration.split(",")) {
+            command.add("-D" + property);
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("ThroughputHttpServer");
+
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.inheritIO();
+        return processBuilder.start();
+    }
+
+    private static boolean waitForServer(Process server) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (System.currentTimeMillis() < deadline && server.isAlive()) {
+            try {
+                new Socket(HOST, PORT).close();
+                return true;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        return false;
+    }
+
+    private static String run(List<String> requests) throws InterruptedException {
+        //a user sends a request every interval, 0 when it does not wait between requests
+        long interval = RATE > 0 ? 1_000_000_000L * NUMBER_OF_USERS / RATE : 0;
+        long startTime = System.nanoTime();
+        long measureFrom = startTime + WARMUP_SECONDS * 1_000_000_000L;
+        long measureUntil = measureFrom + DURATION_SECONDS * 1_000_000_000L;
+
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_USERS; i++) {
+            //the users start at different words, and spread their first requests over the interval
+            long firstRequestTime = startTime + interval * i / NUMBER_OF_USERS;
+            users.add(new User(requests, i * requests.size() / NUMBER_OF_USERS, firstRequestTime, interval,
+                    measureFrom, measureUntil));
+        }
+
+        for (User user : users) {
+            user.start();
+        }
+        for (User user : users) {
+            user.join();
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        long errors = 0;
+        long responses = 0;
+        for (User user : users) {
+            histogram.add(user.histogram);
+            errors += user.errors;
+            responses += user.responses;
+        }
+
+        return String.format("%8.0f requests/s  p50 %7.2f ms  p99 %7.2f ms  p99.9 %7.2f ms  max %7.2f ms  errors %d",
+                responses / (double) DURATION_SECONDS,
+                histogram.getValueAtPercentile(50) / 1e6,
+                histogram.getValueAtPercentile(99) / 1e6,
+                histogram.getValueAtPercentile(99.9) / 1e6,
+                histogram.getMax() / 1e6,
+                errors);
+    }
+
+    private static class User extends Thread {
+        private final List<String> requests;
+        private final long interval;
+        private final long measureFrom;
+        private final long measureUntil;
+        private int nextRequest;
+        private long nextRequestTime;
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private long responses;
+        private long errors;
+
+        private Connection connection;
+
+        public User(List<String> requests, int firstRequest, long firstRequestTime, long interval,
+                    long measureFrom, long measureUntil) {
+            this.requests = requests;
+            this.nextRequest = firstRequest;
+            this.nextRequestTime = firstRequestTime;
+            this.interval = interval;
+            this.measureFrom = measureFrom;
+            this.measureUntil = measureUntil;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                long intendedStartTime = nextRequestTime;
+                long now = System.nanoTime();
+                if (interval > 0 && now < intendedStartTime) {
+                    sleepUntil(intendedStartTime);
+                }
+                long startTime = System.nanoTime();
+                if (startTime >= measureUntil) {
+                    break;
+                }
+
+                boolean succeeded = send(requests.get(nextRequest));
+                long endTime = System.nanoTime();
+                nextRequest = (nextRequest + 1) % requests.size();
+                if (MODE.equals("open")) {
+                    nextRequestTime = intendedStartTime + interval;
+                } else {
+                    //a closed loop user does not catch up on the requests it missed, they are accounted for below
+                    nextRequestTime = Math.max(intendedStartTime + interval, endTime);
+                }
+
+                if (startTime < measureFrom) {
+                    continue;
+                }
+                if (!succeeded) {
+                    errors++;
+                    continue;
+                }
+                responses++;
+                if (MODE.equals("open")) {
+                    //the request was due at its intended time, any delay in sending it is part of its latency
+                    histogram.recordValue(endTime - intendedStartTime);
+                } else {
+                    histogram.recordValueWithExpectedInterval(endTime - startTime, interval);
+                }
+            }
+
+            if (connection != null) {
+                connection.close();
+            }
+        }
+
+        private boolean send(String request) {
+            try {
+                if (connection == null) {
+                    connection = new Connection();
+                }
+                int statusCode = connection.send(request);
+                if (!connection.isReusable()) {
+                    connection.close();
+                    connection = null;
+                }
+                return statusCode == 200;
+            } catch (IOException e) {
+                if (connection != null) {
+                    connection.close();
+                    connection = null;
+                }
+                return false;
+            }
+        }
+
+        private static void sleepUntil(long time) {
+            long remaining;
+            while ((remaining = time - System.nanoTime()) > 0) {
+                try {
+                    Thread.sleep(remaining / 1_000_000, (int) (remaining % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    //a minimal HTTP/1.1 keep alive client, it only understands responses with a Content-Length or without a body
+    private static class Connection {
+        private final Socket socket;
+        private final OutputStream outputStream;
+        private final InputStream inputStream;
+        private final StringBuilder line = new StringBuilder();
+        private boolean reusable = true;
+
+        public Connection() throws IOException {
+            socket = new Socket(HOST, PORT);
+            socket.setTcpNoDelay(true);
+            outputStream = socket.getOutputStream();
+            inputStream = new BufferedInputStream(socket.getInputStream());
+        }
+
+        //returns the status code of the response, after reading the whole response
+        public int send(String request) throws IOException {
+            outputStream.write(request.getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+
+            String statusLine = readLine();
+            int statusCode = Integer.parseInt(statusLine.split(" ")[1]);
+
+            long contentLength = 0;
+            String header;
+            while (!(header = readLine()).isEmpty()) {
+                int colon = header.indexOf(':');
+                String name = header.substring(0, colon).trim();
+                String value = header.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close")) {
+                    reusable = false;
+                }
+            }
+
+            for (long i = 0; i < contentLength; i++) {
+                if (inputStream.read() < 0) {
+                    throw new IOException("Connection closed in the middle of a response");
+                }
+            }
+            return statusCode;
+        }
+
+        //false once the server asked to close the connection after the last response
+        public boolean isReusable() {
+            return reusable;
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+
+        private String readLine() throws IOException {
+            line.setLength(0);
+            int c;
+            while ((c = inputStream.read()) != '\n') {
+                if (c < 0) {
+                    throw new IOException("Connection closed in the middle of a response");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+    }
+}
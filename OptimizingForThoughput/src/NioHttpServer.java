@@ -0,0 +1,685 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+//A front end for /search built right on NIO, as an alternative to the com.sun.net.httpserver.HttpServer.
+
+//Once a request is answered from the index, counting the word costs far less than the HttpServer around it:
+//an HttpExchange, its header maps, its streams and a task on the executor per request, and blocking I/O.
+//Here every event loop thread owns a Selector and a share of the connections, and never blocks.
+//The requests are parsed right out of the read buffer (SearchCodec reads the query through a CharSequence view of it),
+//and the responses are encoded straight into direct buffers, which the socket writes from without another copy.
+//The buffers are pooled by every event loop, and a connection only holds one while it has bytes to read or write,
+//so idle kept alive connections cost no buffer.
+
+//Connections are kept alive (HTTP/1.1, or HTTP/1.0 with "Connection: keep-alive") and the requests can be pipelined:
+//all the requests in the read buffer are answered in order, and their responses written together.
+//A word served from the index is counted on the event loop. Anything else (a scan, or a cache lookup) is counted
+//on the executor of the server, behind its AdmissionControl, and the responses of the pipelined requests which follow
+//wait for it, so they are still sent in order.
+
+//It only understands what /search needs: GET and HEAD requests without a body, whose head fits in a buffer.
+
+public class NioHttpServer {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    //enough for the headers and the body of any response this server sends
+    private static final int MAX_RESPONSE_SIZE = 256;
+    //a connection is not read from while it has that many requests in flight, or responses not written yet
+    private static final int MAX_PIPELINED_REQUESTS = 64;
+    private static final int MAX_OUTPUT_BUFFERS = 16;
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    private static final byte[] SEARCH_PATH = ascii("/search");
+    private static final byte[] CONTENT_LENGTH = ascii("\r\nContent-Length: ");
+    private static final byte[] RETRY_AFTER = ascii("\r\nRetry-After: 1");
+    private static final byte[] CONNECTION_CLOSE = ascii("\r\nConnection: close");
+    private static final byte[] END_OF_HEADERS = ascii("\r\n\r\n");
+    //indexed by the status code
+    private static final byte[][] STATUS_LINES = new byte[600][];
+
+    static {
+        STATUS_LINES[200] = ascii("HTTP/1.1 200 OK");
+        STATUS_LINES[400] = ascii("HTTP/1.1 400 Bad Request");
+        STATUS_LINES[404] = ascii("HTTP/1.1 404 Not Found");
+        STATUS_LINES[405] = ascii("HTTP/1.1 405 Method Not Allowed");
+        STATUS_LINES[431] = ascii("HTTP/1.1 431 Request Header Fields Too Large");
+        STATUS_LINES[500] = ascii("HTTP/1.1 500 Internal Server Error");
+        STATUS_LINES[503] = ascii("HTTP/1.1 503 Service Unavailable");
+    }
+
+    private final SearchService searchService;
+    private final Executor executor;
+    //null when the route is not measured
+    private final RouteMetrics metrics;
+    private final EventLoop[] eventLoops;
+    private ServerSocketChannel serverChannel;
+
+    public NioHttpServer(SearchService searchService, Executor executor, RouteMetrics metrics, int numberOfEventLoops)
+            throws IOException {
+        this.searchService = searchService;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.eventLoops = new EventLoop[numberOfEventLoops];
+        for (int i = 0; i < numberOfEventLoops; i++) {
+            eventLoops[i] = new EventLoop(i);
+        }
+    }
+
+    //the first event loop also accepts the connections, and hands them over to all the event loops in turn
+    public void start(InetSocketAddress address) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(eventLoops[0].selector, SelectionKey.OP_ACCEPT);
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> acceptedChannels = new ConcurrentLinkedQueue<>();
+        //the connections with requests counted on the executor since the last wake up
+        private final ConcurrentLinkedQueue<Connection> completedConnections = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+        //only used by the first event loop, which accepts the connections
+        private int nextEventLoop;
+
+        //reused by all the requests of the event loop, which are handled one at a time
+        private final byte[] wordBuffer = new byte[Corpus.MAX_WORD_LENGTH];
+        private final byte[] decimalBuffer = new byte[SearchCodec.MAX_RESPONSE_LENGTH];
+        private final AsciiSequence query = new AsciiSequence();
+
+        public EventLoop(int number) throws IOException {
+            super("nio-event-loop-" + number);
+            selector = Selector.open();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.out.println("Event loop failed: " + e);
+                    return;
+                }
+
+                SocketChannel acceptedChannel;
+                while ((acceptedChannel = acceptedChannels.poll()) != null) {
+                    register(acceptedChannel);
+                }
+
+                Connection completedConnection;
+                while ((completedConnection = completedConnections.poll()) != null) {
+                    try {
+                        completedConnection.onCompleted();
+                    } catch (RuntimeException e) {
+                        //same as below, only the failing connection is closed
+                        System.out.println("Failed to handle a connection: " + e);
+                        completedConnection.close();
+                    }
+                }
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            connection.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                    } catch (RuntimeException e) {
+                        //a bug in handling a connection must not stop all the others
+                        System.out.println("Failed to handle a connection: " + e);
+                        connection.close();
+                    }
+                }
+            }
+        }
+
+        private void accept() {
+            try {
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    EventLoop eventLoop = eventLoops[nextEventLoop];
+                    nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+                    if (eventLoop == this) {
+                        register(channel);
+                    } else {
+                        eventLoop.acceptedChannels.add(channel);
+                        eventLoop.selector.wakeup();
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to accept a connection: " + e);
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+        }
+
+        //called by the executor's threads
+        private void complete(Connection connection) {
+            completedConnections.add(connection);
+            selector.wakeup();
+        }
+
+        private ByteBuffer takeBuffer() {
+            ByteBuffer buffer = bufferPool.poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        private void returnBuffer(ByteBuffer buffer) {
+            buffer.clear();
+            if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+                bufferPool.push(buffer);
+            }
+        }
+    }
+
+    //a response the connection could not write yet, because the response of an earlier request is not ready
+    private static class PendingResponse {
+        private final boolean head;
+        private final boolean close;
+        //written by the executor's thread, statusCode and count first and done last: the event loop may look at
+        //the response when another one wakes it up, and the volatile write of done publishes the other two
+        private volatile boolean done;
+        private int statusCode;
+        private long count;
+
+        public PendingResponse(boolean head, boolean close) {
+            this.head = head;
+            this.close = close;
+        }
+    }
+
+    //only ever used by the thread of its event loop
+    private class Connection {
+        private final EventLoop eventLoop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        //holds the bytes received and not handled yet from 0 to its position, null when there are none
+        private ByteBuffer readBuffer;
+        //the responses are encoded at the position of the last buffer, and written from the first one
+        private final ArrayDeque<ByteBuffer> outputBuffers = new ArrayDeque<>();
+        private final ArrayDeque<PendingResponse> pendingResponses = new ArrayDeque<>();
+        //set by a request which asked to close the connection, or by a request which could not be parsed
+        private boolean closeAfterWrite;
+        private boolean closed;
+
+        public Connection(EventLoop eventLoop, SocketChannel channel) {
+            this.eventLoop = eventLoop;
+            this.channel = channel;
+        }
+
+        public void onReadable() {
+            if (readBuffer == null) {
+                readBuffer = eventLoop.takeBuffer();
+            }
+            try {
+                if (channel.read(readBuffer) < 0) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            handleRequests();
+            write();
+        }
+
+        public void onWritable() {
+            write();
+            //the requests left in the read buffer while the responses were piling up
+            if (!closed && readBuffer != null) {
+                handleRequests();
+                write();
+            }
+        }
+
+        public void onCompleted() {
+            if (closed) {
+                return;
+            }
+            while (!pendingResponses.isEmpty() && pendingResponses.peek().done) {
+                PendingResponse response = pendingResponses.poll();
+                encodeResponse(response.statusCode, response.count, response.head, response.close);
+            }
+
+            if (readBuffer != null) {
+                handleRequests();
+            }
+            write();
+        }
+
+        private boolean isBlocked() {
+            return closeAfterWrite
+                    || pendingResponses.size() >= MAX_PIPELINED_REQUESTS
+                    || outputBuffers.size() >= MAX_OUTPUT_BUFFERS;
+        }
+
+        //handles all the complete requests in the read buffer, and keeps the rest for the next read
+        private void handleRequests() {
+            int start = 0;
+            int end = readBuffer.position();
+            while (start < end && !isBlocked()) {
+                int headEnd = findHeadEnd(start, end);
+                if (headEnd < 0) {
+                    if (start == 0 && end == readBuffer.capacity()) {
+                        respond(431, 0, false, true);
+                    }
+                    break;
+                }
+                handleRequest(start, headEnd);
+                start = headEnd;
+            }
+
+            readBuffer.limit(end).position(start);
+            readBuffer.compact();
+            if (readBuffer.position() == 0) {
+                eventLoop.returnBuffer(readBuffer);
+                readBuffer = null;
+            }
+        }
+
+        //the index right after the empty line ending the head of the request starting at start, -1 if it is incomplete
+        private int findHeadEnd(int start, int end) {
+            for (int i = start; i + 3 < end; i++) {
+                if (readBuffer.get(i + 3) == '\n' && readBuffer.get(i + 2) == '\r'
+                        && readBuffer.get(i + 1) == '\n' && readBuffer.get(i) == '\r') {
+                    return i + 4;
+                }
+            }
+            return -1;
+        }
+
+        private void handleRequest(int start, int end) {
+            //the request line: method, target and version, separated by single spaces
+            int methodEnd = indexOf(' ', start, end);
+            int targetEnd = methodEnd < 0 ? -1 : indexOf(' ', methodEnd + 1, end);
+            int lineEnd = targetEnd < 0 ? -1 : indexOf('\r', targetEnd + 1, end);
+            if (lineEnd < 0) {
+                respond(400, 0, false, true);
+                return;
+            }
+
+            boolean http11 = regionEquals(targetEnd + 1, lineEnd, "HTTP/1.1");
+            if (!http11 && !regionEquals(targetEnd + 1, lineEnd, "HTTP/1.0")) {
+                respond(400, 0, false, true);
+                return;
+            }
+            boolean head = regionEquals(start, methodEnd, "HEAD");
+            boolean get = regionEquals(start, methodEnd, "GET");
+
+            //HTTP/1.1 connections are kept alive unless the client asks otherwise, HTTP/1.0 ones only when asked to
+            boolean close = !http11;
+            int lineStart = lineEnd + 2;
+            while (lineStart < end - 2) {
+                lineEnd = indexOf('\r', lineStart, end);
+                if (startsWithIgnoreCase(lineStart, lineEnd, "connection:")) {
+                    if (containsIgnoreCase(lineStart, lineEnd, "close")) {
+                        close = true;
+                    } else if (containsIgnoreCase(lineStart, lineEnd, "keep-alive")) {
+                        close = false;
+                    }
+                } else if (startsWithIgnoreCase(lineStart, lineEnd, "transfer-encoding:")
+                        || (startsWithIgnoreCase(lineStart, lineEnd, "content-length:")
+                        && !isZero(lineStart + "content-length:".length(), lineEnd))) {
+                    //the body would have to be skipped, /search requests have none
+                    respond(400, 0, false, true);
+                    return;
+                }
+                lineStart = lineEnd + 2;
+            }
+
+            if (!get && !head) {
+                respond(405, 0, false, close);
+                return;
+            }
+
+            //the path has to be /search, the query follows the '?'
+            int queryStart = methodEnd + 1 + SEARCH_PATH.length;
+            if (queryStart > targetEnd
+                    || !regionEquals(methodEnd + 1, queryStart, SEARCH_PATH)
+                    || (queryStart < targetEnd && readBuffer.get(queryStart) != '?')) {
+                respond(404, 0, head, close);
+                return;
+            }
+            for (int i = methodEnd + 1; i < targetEnd; i++) {
+                byte b = readBuffer.get(i);
+                if (b <= ' ' || b >= 127) {
+                    respond(400, 0, false, true);
+                    return;
+                }
+            }
+            eventLoop.query.set(readBuffer, Math.min(queryStart + 1, targetEnd), targetEnd);
+            search(eventLoop.query, head, close);
+        }
+
+        private void search(AsciiSequence query, boolean head, boolean close) {
+            long startTime = metrics != null ? System.nanoTime() : 0;
+
+            byte[] word = eventLoop.wordBuffer;
+            int wordLength = SearchCodec.decodeWord(query, word);
+            int statusCode = 200;
+            long count = 0;
+            Document document = null;
+            if (wordLength < 0) {
+                statusCode = 400;
+            } else if ((document = SearchService.findDocument(searchService.getRegistry(), query)) == null) {
+                statusCode = 404;
+            } else if (!searchService.needsScan(document, word, wordLength)) {
+                count = searchService.countWord(document, word, wordLength);
+            } else {
+                countLater(document, word, wordLength, head, close, startTime);
+                return;
+            }
+
+            respond(statusCode, count, head, close);
+            if (metrics != null) {
+                long elapsed = System.nanoTime() - startTime;
+                metrics.recordCompute(elapsed);
+                metrics.recordResponse(statusCode, elapsed);
+            }
+        }
+
+        //on the executor, the responses of the requests which follow wait for this one
+        private void countLater(Document document, byte[] word, int wordLength, boolean head, boolean close,
+                                long startTime) {
+
+            //the word buffer belongs to the event loop, the task needs its own copy
+            byte[] wordBytes = Arrays.copyOf(word, wordLength);
+            PendingResponse response = new PendingResponse(head, close);
+            pendingResponses.add(response);
+            if (close) {
+                closeAfterWrite = true;
+            }
+            Runnable task = () -> {
+                long countStartTime = metrics != null ? System.nanoTime() : 0;
+                if (AdmissionControl.isShed()) {
+                    response.statusCode = 503;
+                } else {
+                    try {
+                        response.count = searchService.countWord(document, wordBytes, wordLength);
+                        response.statusCode = 200;
+                    } catch (RuntimeException e) {
+                        response.statusCode = 500;
+                    }
+                }
+                if (metrics != null) {
+                    long endTime = System.nanoTime();
+                    metrics.recordCompute(endTime - countStartTime);
+                    metrics.recordResponse(response.statusCode, endTime - startTime);
+                }
+                response.done = true;
+                eventLoop.complete(this);
+            };
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                //dropped by the AdmissionControl, a 503 costs the event loop nothing
+                response.statusCode = 503;
+                if (metrics != null) {
+                    metrics.recordResponse(503, System.nanoTime() - startTime);
+                }
+                response.done = true;
+                eventLoop.complete(this);
+            }
+        }
+
+        //encodes the response right away, unless the responses of earlier requests are not ready yet
+        //no request is handled after one which closes the connection
+        private void respond(int statusCode, long count, boolean head, boolean close) {
+            if (pendingResponses.isEmpty()) {
+                encodeResponse(statusCode, count, head, close);
+            } else {
+                PendingResponse response = new PendingResponse(head, close);
+                response.statusCode = statusCode;
+                response.count = count;
+                response.done = true;
+                pendingResponses.add(response);
+            }
+            if (close) {
+                closeAfterWrite = true;
+            }
+        }
+
+        private void encodeResponse(int statusCode, long count, boolean head, boolean close) {
+            ByteBuffer output = outputBuffers.peekLast();
+            if (output == null || output.remaining() < MAX_RESPONSE_SIZE) {
+                output = eventLoop.takeBuffer();
+                outputBuffers.add(output);
+            }
+
+            byte[] decimal = eventLoop.decimalBuffer;
+            int bodyLength = statusCode == 200 ? SearchCodec.encodeDecimal(count, decimal) : 0;
+            output.put(STATUS_LINES[statusCode]);
+            output.put(CONTENT_LENGTH);
+            if (bodyLength == 0) {
+                output.put((byte) '0');
+            } else {
+                //the length of the body has at most two digits
+                if (bodyLength >= 10) {
+                    output.put((byte) ('0' + bodyLength / 10));
+                }
+                output.put((byte) ('0' + bodyLength % 10));
+            }
+            if (statusCode == 503) {
+                output.put(RETRY_AFTER);
+            }
+            if (close) {
+                output.put(CONNECTION_CLOSE);
+            }
+            output.put(END_OF_HEADERS);
+            if (!head) {
+                output.put(decimal, 0, bodyLength);
+            }
+        }
+
+        private void write() {
+            if (closed) {
+                return;
+            }
+            try {
+                while (!outputBuffers.isEmpty()) {
+                    ByteBuffer output = outputBuffers.peek();
+                    //the buffer holds the bytes to write from 0 to its position, and keeps them there until written
+                    output.flip();
+                    channel.write(output);
+                    if (output.hasRemaining()) {
+                        output.compact();
+                        break;
+                    }
+                    outputBuffers.poll();
+                    eventLoop.returnBuffer(output);
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+
+            if (closeAfterWrite && outputBuffers.isEmpty() && pendingResponses.isEmpty()) {
+                close();
+                return;
+            }
+            int interestOps = (outputBuffers.isEmpty() ? 0 : SelectionKey.OP_WRITE) | (isBlocked() ? 0 : SelectionKey.OP_READ);
+            if (key.interestOps() != interestOps) {
+                key.interestOps(interestOps);
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            closeQuietly(channel);
+            if (readBuffer != null) {
+                eventLoop.returnBuffer(readBuffer);
+                readBuffer = null;
+            }
+            for (ByteBuffer output : outputBuffers) {
+                eventLoop.returnBuffer(output);
+            }
+            outputBuffers.clear();
+        }
+
+        private int indexOf(char c, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (readBuffer.get(i) == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean regionEquals(int start, int end, String text) {
+            if (end - start != text.length()) {
+                return false;
+            }
+            for (int i = 0; i < text.length(); i++) {
+                if (readBuffer.get(start + i) != text.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean regionEquals(int start, int end, byte[] bytes) {
+            if (end - start != bytes.length) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (readBuffer.get(start + i) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        //true if the value is a number made of zeros only, around spaces
+        private boolean isZero(int start, int end) {
+            while (start < end && readBuffer.get(start) == ' ') {
+                start++;
+            }
+            while (end > start && readBuffer.get(end - 1) == ' ') {
+                end--;
+            }
+            if (start == end) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                if (readBuffer.get(i) != '0') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean startsWithIgnoreCase(int start, int end, String prefix) {
+            return end - start >= prefix.length() && containsIgnoreCaseAt(start, prefix);
+        }
+
+        private boolean containsIgnoreCase(int start, int end, String text) {
+            for (int i = start; i + text.length() <= end; i++) {
+                if (containsIgnoreCaseAt(i, text)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        //the text is lower case
+        private boolean containsIgnoreCaseAt(int start, String text) {
+            for (int i = 0; i < text.length(); i++) {
+                if (Character.toLowerCase((char) readBuffer.get(start + i)) != text.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    //the bytes of a buffer, seen as ASCII characters without copying them
+    private static class AsciiSequence implements CharSequence {
+        private ByteBuffer buffer;
+        private int start;
+        private int end;
+
+        public void set(ByteBuffer buffer, int start, int end) {
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) buffer.get(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            AsciiSequence subSequence = new AsciiSequence();
+            subSequence.set(buffer, start + from, start + to);
+            return subSequence;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(length());
+            return text.append(this).toString();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
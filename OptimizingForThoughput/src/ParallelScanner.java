@@ -0,0 +1,101 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+//Splits a single scan of the book into chunks which are counted in parallel on a ForkJoinPool.
+
+//Every chunk counts only the matches that start inside of it, but it is allowed to read word.length - 1 bytes
+//past its end, so the chunks overlap just enough to find the matches crossing a boundary and every match
+//is still counted exactly once.
+
+//Splitting a request only pays off while there are idle cores. Under load all the server threads are
+//already busy scanning, and splitting every request would only add overhead, so in the adaptive mode
+//a request is split only when few requests are being served at the same time.
+
+//The mode is chosen with -Dparallel.scan=adaptive|always|off, adaptive being the default.
+
+public class ParallelScanner {
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+
+    private final ForkJoinPool pool;
+    private final String mode;
+    //up to this many concurrent requests the server is considered under loaded
+    private final int maxConcurrentRequests;
+
+    public ParallelScanner(String mode) {
+        if (!mode.equals("adaptive") && !mode.equals("always") && !mode.equals("off")) {
+            throw new IllegalArgumentException("Unknown parallel scan mode " + mode + ", expected adaptive, always or off");
+        }
+        this.mode = mode;
+        this.pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        //leave every split request a few cores to spread over
+        this.maxConcurrentRequests = Math.max(1, pool.getParallelism() / 4);
+    }
+
+    public long countOccurrences(Corpus corpus, byte[] word, CountEngine engine, int concurrentRequests) {
+        if (!shouldSplit(corpus, concurrentRequests)) {
+            return corpus.countOccurrences(word, engine);
+        }
+
+        if (word.length == 0 || word.length > Corpus.MAX_WORD_LENGTH) {
+            throw new IllegalArgumentException("Word length must be between 1 and " + Corpus.MAX_WORD_LENGTH);
+        }
+
+        List<ChunkCountTask> tasks = new ArrayList<>();
+        for (int i = 0; i < corpus.numberOfSegments(); i++) {
+            tasks.add(new ChunkCountTask(corpus.segment(i), 0, corpus.segmentLength(i), word, engine));
+        }
+
+        return pool.invoke(new RecursiveTask<Long>() {
+            @Override
+            protected Long compute() {
+                long count = 0;
+                for (ChunkCountTask task : invokeAll(tasks)) {
+                    count += task.join();
+                }
+                return count;
+            }
+        });
+    }
+
+    private boolean shouldSplit(Corpus corpus, int concurrentRequests) {
+        if (mode.equals("off") || pool.getParallelism() < 2 || corpus.length() < 2 * MIN_CHUNK_SIZE) {
+            return false;
+        }
+        return mode.equals("always") || concurrentRequests <= maxConcurrentRequests;
+    }
+
+    private static class ChunkCountTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer text;
+        private final int from;
+        private final int to;
+        private final byte[] word;
+        private final CountEngine engine;
+
+        public ChunkCountTask(ByteBuffer text, int from, int to, byte[] word, CountEngine engine) {
+            this.text = text;
+            this.from = from;
+            this.to = to;
+            this.word = word;
+            this.engine = engine;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= MIN_CHUNK_SIZE * 2) {
+                return engine.count(text, from, to, word);
+            }
+
+            int middle = from + (to - from) / 2;
+            ChunkCountTask left = new ChunkCountTask(text, from, middle, word, engine);
+            ChunkCountTask right = new ChunkCountTask(text, middle, to, word, engine);
+            left.fork();
+            long rightCount = right.compute();
+            return left.join() + rightCount;
+        }
+    }
+}
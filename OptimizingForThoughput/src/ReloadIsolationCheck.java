@@ -0,0 +1,80 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+//Checks that a request which holds a version of a corpus keeps seeing the same text while the file is rewritten
+//in place, truncated, and reloaded: a slow scan counts a word over and over in the first version
+//while the file changes under it, with both backends.
+
+//Exits with status 1 if a count of the old version changed, a scan failed, or the new version does not see the new text.
+
+public class ReloadIsolationCheck {
+    private static final byte[] WORD = "war".getBytes(StandardCharsets.UTF_8);
+    private static final int OLD_OCCURRENCES = 100000;
+
+    public static void main(String[] args) throws Exception {
+        int failures = 0;
+        for (String backend : new String[]{"mmap", "heap"}) {
+            failures += check(backend);
+        }
+        System.out.println(failures == 0 ? "Every version kept its text" : failures + " checks failed");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    //returns the number of failures, 0 or 1
+    private static int check(String backend) throws Exception {
+        Path file = Files.createTempFile("reload-check-", ".txt");
+        try {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < OLD_OCCURRENCES; i++) {
+                text.append("war and peace ");
+            }
+            Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+
+            CorpusRegistry registry = new CorpusRegistry(Collections.singletonMap("book", file),
+                    (name, path, version) -> new Document(name, version, Corpus.load(path, backend), null, null));
+            Document oldVersion = registry.reload("book").join();
+
+            //the slow scan, which holds the old version from start to end
+            CountEngine engine = CountEngine.forName("auto");
+            AtomicReference<String> scanFailure = new AtomicReference<>();
+            Thread scan = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 20; i++) {
+                        long count = oldVersion.getCorpus().countOccurrences(WORD, engine);
+                        if (count != OLD_OCCURRENCES) {
+                            scanFailure.set("the old version has " + count + " occurrences instead of " + OLD_OCCURRENCES);
+                            return;
+                        }
+                        Thread.sleep(10);
+                    }
+                } catch (Throwable e) {
+                    scanFailure.set("the scan of the old version failed: " + e);
+                }
+            });
+            scan.start();
+
+            //rewritten in place (same file, shorter and different), reloaded, then truncated to nothing
+            Files.write(file, "peace, war".getBytes(StandardCharsets.UTF_8));
+            Document newVersion = registry.reload("book").join();
+            Thread.sleep(50);
+            Files.write(file, new byte[0]);
+            scan.join();
+
+            long newCount = newVersion.getCorpus().countOccurrences(WORD, engine);
+            if (scanFailure.get() != null || newCount != 1) {
+                System.out.println(String.format("%s: %s, the new version has %d occurrences instead of 1",
+                        backend, scanFailure.get(), newCount));
+                return 1;
+            }
+            System.out.println(backend + ": ok");
+            return 0;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
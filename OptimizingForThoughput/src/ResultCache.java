@@ -0,0 +1,153 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+//Caches the number of occurrences of the words which had to be counted by scanning the book.
+
+//The book never changes and the clients keep asking for the same few thousand words, so a count
+//only has to be computed once. The cache is bounded both by the number of entries and by an estimate
+//of the memory they take, and evicts the least recently used entries first.
+//To keep the threads from contending on a single lock, the entries are spread over several stripes,
+//every stripe being an access ordered LinkedHashMap with its own lock and its own share of the bounds.
+
+//When many threads miss on the same word at the same time, only the first one scans the book,
+//the others wait for its result instead of scanning the book as well.
+
+public class ResultCache {
+    private static final int NUMBER_OF_STRIPES = 16;
+    //a String key, a boxed Long and a LinkedHashMap entry, the characters of the key come on top of that
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final Stripe[] stripes = new Stripe[NUMBER_OF_STRIPES];
+    private final ConcurrentHashMap<String, CompletableFuture<Long>> pendingCounts = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalescedMisses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ResultCache(int maxEntries, long maxBytes) {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(Math.max(1, maxEntries / NUMBER_OF_STRIPES), Math.max(1, maxBytes / NUMBER_OF_STRIPES));
+        }
+    }
+
+    public long get(String word, LongSupplier countFunction) {
+        Stripe stripe = stripeFor(word);
+        Long count = stripe.get(word);
+        if (count != null) {
+            hits.increment();
+            return count;
+        }
+
+        CompletableFuture<Long> pendingCount = new CompletableFuture<>();
+        CompletableFuture<Long> otherPendingCount = pendingCounts.putIfAbsent(word, pendingCount);
+        if (otherPendingCount != null) {
+            //another thread is already counting this word
+            coalescedMisses.increment();
+            return otherPendingCount.join();
+        }
+
+        try {
+            //the other thread may have finished between our lookup and putIfAbsent
+            count = stripe.get(word);
+            if (count != null) {
+                hits.increment();
+            } else {
+                misses.increment();
+                count = countFunction.getAsLong();
+                stripe.put(word, count);
+            }
+            pendingCount.complete(count);
+            return count;
+        } catch (RuntimeException e) {
+            pendingCount.completeExceptionally(e);
+            throw e;
+        } finally {
+            pendingCounts.remove(word, pendingCount);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getCoalescedMisses() {
+        return coalescedMisses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int getNumberOfEntries() {
+        int entries = 0;
+        for (Stripe stripe : stripes) {
+            entries += stripe.getNumberOfEntries();
+        }
+        return entries;
+    }
+
+    public long getSizeInBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            bytes += stripe.getSizeInBytes();
+        }
+        return bytes;
+    }
+
+    private Stripe stripeFor(String word) {
+        int hash = word.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (NUMBER_OF_STRIPES - 1)];
+    }
+
+    private static long sizeOf(String word) {
+        return ENTRY_OVERHEAD_BYTES + 2L * word.length();
+    }
+
+    private class Stripe {
+        private final int maxEntries;
+        private final long maxBytes;
+        //iterates from the least to the most recently used entry
+        private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long sizeInBytes;
+
+        public Stripe(int maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        public synchronized Long get(String word) {
+            return entries.get(word);
+        }
+
+        public synchronized void put(String word, long count) {
+            if (entries.put(word, count) == null) {
+                sizeInBytes += sizeOf(word);
+            }
+
+            Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || sizeInBytes > maxBytes) && iterator.hasNext()) {
+                sizeInBytes -= sizeOf(iterator.next().getKey());
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+
+        public synchronized int getNumberOfEntries() {
+            return entries.size();
+        }
+
+        public synchronized long getSizeInBytes() {
+            return sizeInBytes;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.concurrent.atomic.LongAdder;
+
+//The counters and latencies of a single route of the server.
+
+//The number of responses is kept per status class (2xx, 4xx...) in striped counters (LongAdder),
+//and the latencies in StripedLatencyHistograms, so recording a request takes no lock.
+//The latency of a request is split in phases:
+//  total   - from the moment the handler is called until the response is written, as measured by the Filter
+//  compute - decoding the request and computing the response (for the routes which report it)
+//  write   - sending the headers and the body of the response (for the routes which report it)
+//The time a request spent waiting for a thread is measured once for all the routes by AdmissionControl.
+
+public class RouteMetrics {
+    private final String route;
+    //indexed by the status code divided by 100, 0 for the requests which failed without a response
+    private final LongAdder[] responses = new LongAdder[6];
+    private final StripedLatencyHistogram totalLatency = new StripedLatencyHistogram();
+    private final StripedLatencyHistogram computeLatency = new StripedLatencyHistogram();
+    private final StripedLatencyHistogram writeLatency = new StripedLatencyHistogram();
+
+    public RouteMetrics(String route) {
+        this.route = route;
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = new LongAdder();
+        }
+    }
+
+    public String getRoute() {
+        return route;
+    }
+
+    //statusCode is -1 when the handler failed before sending a response
+    public void recordResponse(int statusCode, long totalNanos) {
+        int statusClass = statusCode / 100;
+        responses[statusClass > 0 && statusClass < responses.length ? statusClass : 0].increment();
+        totalLatency.recordValue(totalNanos);
+    }
+
+    public void recordCompute(long nanos) {
+        computeLatency.recordValue(nanos);
+    }
+
+    public void recordWrite(long nanos) {
+        writeLatency.recordValue(nanos);
+    }
+
+    //the number of responses with a status code of statusClass * 100 to statusClass * 100 + 99
+    public long getResponses(int statusClass) {
+        return responses[statusClass].sum();
+    }
+
+    //the getters fill the given histogram and return it, see StripedLatencyHistogram.snapshot
+    public LatencyHistogram getTotalLatency(LatencyHistogram snapshot) {
+        return totalLatency.snapshot(snapshot);
+    }
+
+    public LatencyHistogram getComputeLatency(LatencyHistogram snapshot) {
+        return computeLatency.snapshot(snapshot);
+    }
+
+    public LatencyHistogram getWriteLatency(LatencyHistogram snapshot) {
+        return writeLatency.snapshot(snapshot);
+    }
+}
@@ -0,0 +1,163 @@
+//Parses the word out of a /search query and encodes the count of the response,
+//into buffers given by the caller, so a request does not create any garbage.
+
+//At high request rates even small allocations per request (splitting the query with a regex,
+//Long.toString(count).getBytes()) add up to frequent GC pauses, which show in the tail latency.
+//AllocationCheck verifies the steady state allocates nothing.
+//The queries are CharSequences, so a front end can also parse them right out of its own buffers (see NioHttpServer).
+
+public class SearchCodec {
+    private static final String WORD_PARAMETER = "word";
+    //the longest decimal long, with the sign
+    public static final int MAX_RESPONSE_LENGTH = 20;
+
+    //decodes the "word" parameter of a raw (still percent encoded) query into UTF-8 bytes
+    //returns the length of the word, or -1 if the query has no word, or the word is empty, malformed or too long
+    public static int decodeWord(CharSequence rawQuery, byte[] buffer) {
+        int valueStart = findParameter(rawQuery, WORD_PARAMETER);
+        if (valueStart < 0) {
+            return -1;
+        }
+        int length = percentDecode(rawQuery, valueStart, parameterEnd(rawQuery, valueStart), buffer);
+        return length > 0 ? length : -1;
+    }
+
+    //returns the index where the value of the first parameter with the given name starts, or -1 if there is none
+    public static int findParameter(CharSequence rawQuery, String name) {
+        if (rawQuery == null) {
+            return -1;
+        }
+
+        int parameterStart = 0;
+        while (parameterStart <= rawQuery.length()) {
+            int parameterEnd = parameterEnd(rawQuery, parameterStart);
+            int valueStart = parameterStart + name.length() + 1;
+            if (valueStart <= parameterEnd
+                    && startsWith(rawQuery, name, parameterStart)
+                    && rawQuery.charAt(valueStart - 1) == '=') {
+                return valueStart;
+            }
+            parameterStart = parameterEnd + 1;
+        }
+        return -1;
+    }
+
+    //the index right after the value starting at valueStart
+    public static int parameterEnd(CharSequence rawQuery, int valueStart) {
+        for (int i = valueStart; i < rawQuery.length(); i++) {
+            if (rawQuery.charAt(i) == '&') {
+                return i;
+            }
+        }
+        return rawQuery.length();
+    }
+
+    private static boolean startsWith(CharSequence text, String prefix, int start) {
+        if (start + prefix.length() > text.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //writes the value in decimal as ASCII and returns the number of bytes written,
+    //the buffer needs room for MAX_RESPONSE_LENGTH bytes
+    public static int encodeDecimal(long value, byte[] buffer) {
+        if (value == 0) {
+            buffer[0] = '0';
+            return 1;
+        }
+
+        //write the digits from the end of the buffer, then move them to the front
+        int position = MAX_RESPONSE_LENGTH;
+        boolean negative = value < 0;
+        //negative values are handled as negative numbers, since -Long.MIN_VALUE does not fit a long
+        long remaining = negative ? value : -value;
+        while (remaining != 0) {
+            buffer[--position] = (byte) ('0' - (remaining % 10));
+            remaining /= 10;
+        }
+        if (negative) {
+            buffer[--position] = '-';
+        }
+
+        int length = MAX_RESPONSE_LENGTH - position;
+        System.arraycopy(buffer, position, buffer, 0, length);
+        return length;
+    }
+
+    //decodes text[start, end) of a raw query into UTF-8 bytes and returns their number, -1 if malformed or too long;
+    //like URI.getQuery() the '+' is kept as it is, characters which were not escaped are encoded as UTF-8
+    public static int percentDecode(CharSequence text, int start, int end, byte[] buffer) {
+        int length = 0;
+        int i = start;
+        while (i < end) {
+            char c = text.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= end) {
+                    return -1;
+                }
+                int high = Character.digit(text.charAt(i + 1), 16);
+                int low = Character.digit(text.charAt(i + 2), 16);
+                if (high < 0 || low < 0 || length + 1 > buffer.length) {
+                    return -1;
+                }
+                buffer[length++] = (byte) ((high << 4) | low);
+                i += 3;
+                continue;
+            }
+
+            int codePoint = c;
+            int charCount = 1;
+            if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                codePoint = Character.toCodePoint(c, text.charAt(i + 1));
+                charCount = 2;
+            } else if (Character.isSurrogate(c)) {
+                return -1;
+            }
+
+            length = encodeUtf8(codePoint, buffer, length);
+            if (length < 0) {
+                return -1;
+            }
+            i += charCount;
+        }
+        return length;
+    }
+
+    //returns the new length, or -1 if the code point does not fit
+    private static int encodeUtf8(int codePoint, byte[] buffer, int length) {
+        if (codePoint < 0x80) {
+            if (length + 1 > buffer.length) {
+                return -1;
+            }
+            buffer[length++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            if (length + 2 > buffer.length) {
+                return -1;
+            }
+            buffer[length++] = (byte) (0xC0 | (codePoint >> 6));
+            buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            if (length + 3 > buffer.length) {
+                return -1;
+            }
+            buffer[length++] = (byte) (0xE0 | (codePoint >> 12));
+            buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            if (length + 4 > buffer.length) {
+                return -1;
+            }
+            buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+            buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        return length;
+    }
+}
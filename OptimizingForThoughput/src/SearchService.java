@@ -0,0 +1,70 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Answers /search requests, whichever front end received them (the WordCountHandler of the JDK HttpServer,
+//or the NioHttpServer): which corpus the query names, and how many times the word appears in it.
+
+//The front ends decode the query themselves, into buffers of their own, and decide on which thread the word is counted.
+//needsScan tells them whether counting may take long: a word served from the index never does,
+//so the NioHttpServer answers it right on its event loop.
+
+public class SearchService {
+    private final CorpusRegistry registry;
+    private final CountEngine engine;
+    private final ParallelScanner scanner;
+    //the number of requests being counted right now, used to tell whether there are idle cores to split a scan over
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+
+    public SearchService(CorpusRegistry registry, CountEngine engine, ParallelScanner scanner) {
+        this.registry = registry;
+        this.engine = engine;
+        this.scanner = scanner;
+    }
+
+    public CorpusRegistry getRegistry() {
+        return registry;
+    }
+
+    //the document named by the corpus parameter of the query, the default one if there is no such parameter,
+    //null if there is no loaded corpus with that name
+    public static Document findDocument(CorpusRegistry registry, CharSequence rawQuery) {
+        int nameStart = SearchCodec.findParameter(rawQuery, "corpus");
+        if (nameStart < 0) {
+            return registry.getDefault();
+        }
+        return registry.get(rawQuery, nameStart, SearchCodec.parameterEnd(rawQuery, nameStart));
+    }
+
+    //phrases and words with punctuation are not terms of the index, those still need a scan
+    public boolean needsScan(Document document, byte[] word, int wordLength) {
+        return document.getIndex() == null || !WordIndex.isSingleTerm(word, wordLength);
+    }
+
+    public long countWord(Document document, byte[] word, int wordLength) {
+        //an index lookup is cheaper than a cache lookup, so only the scans are cached
+        if (!needsScan(document, word, wordLength)) {
+            return document.getIndex().count(word, wordLength);
+        }
+
+        int requests = concurrentRequests.incrementAndGet();
+        try {
+            return scan(document, word, wordLength, requests);
+        } finally {
+            concurrentRequests.decrementAndGet();
+        }
+    }
+
+    private long scan(Document document, byte[] word, int wordLength, int concurrentRequests) {
+        //a scan costs far more than copying the word out of the shared buffer
+        byte[] wordBytes = Arrays.copyOf(word, wordLength);
+        Corpus corpus = document.getCorpus();
+        ResultCache cache = document.getCache();
+        if (cache == null) {
+            return scanner.countOccurrences(corpus, wordBytes, engine, concurrentRequests);
+        }
+        //the key is the bytes as they are, one char per byte: decoding them as UTF-8 would turn every invalid
+        //sequence into the same replacement char, and different words into the same entry
+        return cache.get(new String(wordBytes, StandardCharsets.ISO_8859_1), () -> scanner.countOccurrences(corpus, wordBytes, engine, concurrentRequests));
+    }
+}
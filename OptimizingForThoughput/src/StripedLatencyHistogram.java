@@ -0,0 +1,69 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+//A LatencyHistogram that many threads can record into at the same time, without a lock.
+
+//The counts of the buckets are kept in a few stripes of atomic counters, and a thread always counts into the stripe
+//picked by its id. Counting is a single atomic increment, no lock and no retry loop; the threads which share a stripe
+//only meet on the cache line of a bucket when they record close latencies at the same moment. Every stripe
+//is padded at both ends, so the hot buckets of neighbouring stripes never share a cache line.
+//The sum goes to a LongAdder, which spreads the threads over cells of its own as soon as they contend, and the max
+//to a LongAccumulator, which only writes when a value is a new max: once the server runs, recording a latency
+//reads the max and writes nothing there.
+//A histogram per thread would not need the atomics at all, but the virtual executor starts a new thread per request,
+//and a histogram per request would cost far more than they do.
+
+//The memory is bounded whatever the number of cores: at most MAX_STRIPES stripes, and every stripe only tracks
+//latencies up to HIGHEST_TRACKABLE_VALUE (longer ones are counted in its last bucket, the max is still exact),
+//4352 buckets of 8 bytes, about 34KB per stripe and 272KB per histogram.
+
+//Reading adds all the stripes into a LatencyHistogram given by the reader, which can reuse it from one read
+//to the next. The stripes are read while they are written, so a read may miss the sum or the count of the values
+//recorded during the read, not the values recorded before it.
+
+public class StripedLatencyHistogram {
+    private static final int MAX_STRIPES = 8;
+    //about 18 minutes in nanoseconds
+    private static final long HIGHEST_TRACKABLE_VALUE = (1L << 40) - 1;
+    private static final int NUMBER_OF_BUCKETS = LatencyHistogram.bucketOf(HIGHEST_TRACKABLE_VALUE) + 1;
+    //unused counters at both ends of every stripe, two cache lines of 64 bytes
+    private static final int PADDING = 16;
+
+    private final AtomicLongArray[] stripes;
+    private final int mask;
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public StripedLatencyHistogram() {
+        //a power of two, so picking the stripe is a mask; the threads of the server's pools get consecutive ids,
+        //so up to MAX_STRIPES of them get a stripe of their own
+        int cores = Runtime.getRuntime().availableProcessors();
+        int numberOfStripes = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, cores * 2 - 1)));
+        stripes = new AtomicLongArray[numberOfStripes];
+        for (int i = 0; i < numberOfStripes; i++) {
+            stripes[i] = new AtomicLongArray(PADDING + NUMBER_OF_BUCKETS + PADDING);
+        }
+        mask = numberOfStripes - 1;
+    }
+
+    public void recordValue(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Latency cannot be negative: " + value);
+        }
+        AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & mask];
+        stripe.incrementAndGet(PADDING + LatencyHistogram.bucketOf(Math.min(value, HIGHEST_TRACKABLE_VALUE)));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    //replaces the values of the given histogram with all the values recorded so far, and returns it
+    public LatencyHistogram snapshot(LatencyHistogram snapshot) {
+        snapshot.reset();
+        for (AtomicLongArray stripe : stripes) {
+            snapshot.addCounts(stripe, PADDING, NUMBER_OF_BUCKETS);
+        }
+        snapshot.addSumAndMax(sum.sum(), max.get());
+        return snapshot;
+    }
+}
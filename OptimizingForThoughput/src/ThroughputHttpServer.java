@@ -1,16 +1,27 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
 
-//This is an example of a http server with constant number of threads serving a flow of http requests
+//This is an example of a http server with a pool of threads serving a flow of http requests
 
 //It will first load a very large book from resources folder.
 //It will act like a very basic search engine - the client will send us a word in http request url,
@@ -19,28 +30,131 @@ import java.util.concurrent.Executors;
 
 //to test this application, open the browser, go to localhost:8000/search?keywordToSearch
 
+//By default the book is indexed once at startup (see WordIndex) and every single word search is a hash table lookup.
+//Run with -Dsearch.mode=substring to get the original behaviour back, where every request scans the whole book
+//and also counts the occurrences of the word inside other words (e.g. "war" inside "warm").
+
+//The book is never decoded into a String, it is searched as UTF-8 bytes (see Corpus).
+//By default the file is memory mapped, so the heap does not grow with the size of the book,
+//run with -Dcorpus.backend=heap to read it into a byte array instead.
+//Scans are done by the engine chosen with -Dcount.engine (see CountEngine).
+//While the server is not busy, a single scan is also split over all the cores (see ParallelScanner).
+
+//The requests are executed on the executor chosen with -Dserver.executor:
+//  fixed        - a fixed thread pool with a thread per core (the default)
+//  virtual      - a new virtual thread per request, needs Java 21 or later
+//  workstealing - a ForkJoinPool with a work queue per thread
+//LoadGenerator compares them, and the count engines, without the need for JMeter.
+
+//At most -Dqueue.depth requests wait for a thread (1024 by default) and a request that waited longer than
+//-Dqueue.deadline.ms (2000 by default) is dropped. Both are answered with 503 and a Retry-After header
+//(see AdmissionControl). The queue counters are served as plain text on localhost:8000/metrics.
+
+//Every route also counts its responses per status class, and measures its latency (see RouteMetrics),
+//as does the executor for the time the requests wait for a thread and the time its threads are busy.
+///metrics serves them too, one "name{labels} value" per line, the latencies as quantiles in seconds.
+//Run with -Dmetrics=off to measure nothing but the queue counters, e.g. to compare the throughput with LoadGenerator.
+
+//The HTTP front end is chosen with -Dserver.frontend:
+//  jdk - the com.sun.net.httpserver.HttpServer serves all the routes (the default)
+//  nio - NioHttpServer serves /search on port 8000, from -Dnio.loops event loops (one per core by default),
+//        with keep alive and pipelining, and the other routes are served by the JDK server on -Dadmin.port (8001)
+//Both answer /search the same way (see SearchService), so they can be compared with the same JMeter plan or LoadGenerator.
+
+//The counts computed by scanning the book are cached (see ResultCache), up to -Dcache.entries entries (10000 by default)
+//and -Dcache.bytes bytes (4MB by default). Set -Dcache.entries=0 to turn the cache off.
+
+//Many words can be counted with a single request, and a single pass over the book (see AhoCorasick):
+//  localhost:8000/batch?words=war,peace,Moscow
+//or with a POST to localhost:8000/batch with one word per line in the body.
+//The response has the count of every word on its own line, in the order of the request.
+
+//Several books can be served at the same time, they are listed with -Dcorpora=name=path,name=path
+//and a request picks one with the corpus parameter (localhost:8000/search?corpus=name&word=war),
+//the first one being the default. localhost:8000/reload?corpus=name loads the book again from its file
+//in the background and swaps it in once it is ready, without restarting the server (see CorpusRegistry).
+//Only clients on the same host may reload, unless the server is started with -Dreload.remote=on.
+
 
 public class ThroughputHttpServer {
-    private static final String INPUT_FILE = "./resources/war_and_peace.txt";
-    private static final int NUMBER_OF_THREADS = 8;
+    private static final String CORPORA = System.getProperty("corpora", "war_and_peace=./resources/war_and_peace.txt");
+    private static final int NUMBER_OF_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int PORT = 8000;
+    private static final int ADMIN_PORT = Integer.getInteger("admin.port", 8001);
+    private static final String SERVER_FRONTEND = System.getProperty("server.frontend", "jdk");
+    private static final int NIO_EVENT_LOOPS = Integer.getInteger("nio.loops", Runtime.getRuntime().availableProcessors());
+    private static final String SERVER_EXECUTOR = System.getProperty("server.executor", "fixed");
+    private static final int QUEUE_DEPTH = Integer.getInteger("queue.depth", 1024);
+    private static final long QUEUE_DEADLINE_MILLIS = Long.getLong("queue.deadline.ms", 2000);
+    private static final String RETRY_AFTER_SECONDS = "1";
+    private static final int CACHE_ENTRIES = Integer.getInteger("cache.entries", 10_000);
+    private static final long CACHE_BYTES = Long.getLong("cache.bytes", 4 * 1024 * 1024);
+    private static final String SEARCH_MODE = System.getProperty("search.mode", "index");
+    private static final String CORPUS_BACKEND = System.getProperty("corpus.backend", "mmap");
+    private static final String COUNT_ENGINE = System.getProperty("count.engine", "auto");
+    private static final String PARALLEL_SCAN = System.getProperty("parallel.scan", "adaptive");
+    private static final boolean METRICS = !System.getProperty("metrics", "on").equals("off");
+    private static final boolean REMOTE_RELOAD = System.getProperty("reload.remote", "off").equals("on");
 
     public static void main(String[] args) throws IOException {
-        //read the book from the file to String
-        String text = new String(Files.readAllBytes(Paths.get(INPUT_FILE)));
-        startServer(text);
+        if (!SEARCH_MODE.equals("index") && !SEARCH_MODE.equals("substring")) {
+            throw new IllegalArgumentException("Unknown search mode " + SEARCH_MODE + ", expected index or substring");
+        }
+
+        CorpusRegistry registry = new CorpusRegistry(CorpusRegistry.parse(CORPORA), ThroughputHttpServer::loadDocument);
+
+        //only the default corpus has to be ready before the server starts, the others are loaded in the background
+        for (String name : registry.getPaths().keySet()) {
+            CompletableFuture<Document> loaded = reload(registry, name);
+            if (name.equals(registry.getDefaultName())) {
+                loaded.join();
+            }
+        }
+        startServer(registry);
     }
 
-    public static void startServer(String text) throws IOException {
-        //create http server, choose port to be 8000 to be listened on
+    public static void startServer(CorpusRegistry registry) throws IOException {
+        //create the executor first, so a bad configuration fails before the port is taken
+        Executor pool = createExecutor(SERVER_EXECUTOR);
+        AdmissionControl executor = new AdmissionControl(pool, QUEUE_DEPTH, QUEUE_DEADLINE_MILLIS, METRICS);
+
+        SearchService searchService = new SearchService(registry,
+                CountEngine.forName(COUNT_ENGINE), new ParallelScanner(PARALLEL_SCAN));
+
+        //the JDK server does not disable Nagle's algorithm by default, and then every response it sends on a kept alive
+        //connection waits for the delayed ACK of the client (40 ms on Linux)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+
+        //create http server, choose port to be 8000 to be listened on (the other routes move to the admin port
+        //when the NIO front end takes port 8000)
         //the second parameter is backlog size which defines the size of the queue for http server requests
-        //leave it zero since all the requests should end up in the thread pool's queue instead
-        HttpServer server = HttpServer.create(new InetSocketAddress(8000), 0);
+        //leave it zero (the system default), the requests are queued, and bounded, by the AdmissionControl instead
+        boolean nioFrontEnd = selectFrontEnd(SERVER_FRONTEND);
+        HttpServer server = HttpServer.create(new InetSocketAddress(nioFrontEnd ? ADMIN_PORT : PORT), 0);
+
+        //null when the routes are not measured
+        RouteMetrics searchMetrics = METRICS ? new RouteMetrics("/search") : null;
+        RouteMetrics batchMetrics = METRICS ? new RouteMetrics("/batch") : null;
+        List<RouteMetrics> routes = new ArrayList<>();
 
         //create the context which basically assigns a handler object to a particular HTTP route
-        server.createContext("/search", new WordCountHandler(text));
+        if (nioFrontEnd) {
+            NioHttpServer nioServer = new NioHttpServer(searchService, executor, searchMetrics, NIO_EVENT_LOOPS);
+            nioServer.start(new InetSocketAddress(PORT));
+            if (searchMetrics != null) {
+                routes.add(searchMetrics);
+            }
+        } else {
+            createContext(server, "/search", new WordCountHandler(searchService, searchMetrics), searchMetrics, routes);
+        }
+        createContext(server, "/batch", new BatchCountHandler(registry, batchMetrics), batchMetrics, routes);
+        createContext(server, "/reload", new ReloadHandler(registry),
+                METRICS ? new RouteMetrics("/reload") : null, routes);
+        createContext(server, "/metrics", new MetricsHandler(executor, poolSize(pool), registry, routes),
+                METRICS ? new RouteMetrics("/metrics") : null, routes);
 
-        //create a fix thread pool
-        Executor executor = Executors.newFixedThreadPool(NUMBER_OF_THREADS);
         server.setExecutor(executor);
 
         //after start() method is called, the application will start to listening to HTTP requests on port 8000
@@ -49,45 +163,476 @@ public class ThroughputHttpServer {
         server.start();
     }
 
+    //the filter measures the whole handling of every request of the route, the handler may measure its phases
+    private static void createContext(HttpServer server, String path, HttpHandler handler, RouteMetrics metrics,
+                                      List<RouteMetrics> routes) {
+        HttpContext context = server.createContext(path, handler);
+        if (metrics != null) {
+            context.getFilters().add(new TimingFilter(metrics));
+            routes.add(metrics);
+        }
+    }
+
+    //true for the NIO front end, false for the JDK HttpServer
+    private static boolean selectFrontEnd(String name) {
+        switch (name) {
+            case "jdk":
+                return false;
+            case "nio":
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown front end " + name + ", expected jdk or nio");
+        }
+    }
+
+    private static Executor createExecutor(String name) {
+        switch (name) {
+            case "fixed":
+                //the work is CPU bound, so more threads than cores would only add context switches
+                return Executors.newFixedThreadPool(NUMBER_OF_THREADS);
+            case "workstealing":
+                return Executors.newWorkStealingPool(NUMBER_OF_THREADS);
+            case "virtual":
+                //looked up by reflection so the server still compiles and runs on older JDKs
+                try {
+                    return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("The virtual executor needs Java 21 or later", e);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown executor " + name + ", expected fixed, virtual or workstealing");
+        }
+    }
+
+    //the threads the executor runs the requests on at most, -1 for an executor without a fixed pool (virtual)
+    private static int poolSize(Executor executor) {
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+        }
+        if (executor instanceof ForkJoinPool) {
+            return ((ForkJoinPool) executor).getParallelism();
+        }
+        return -1;
+    }
+
+    private static CompletableFuture<Document> reload(CorpusRegistry registry, String name) {
+        return registry.reload(name).whenComplete((document, error) -> {
+            if (error != null) {
+                System.out.println(String.format("Failed to load corpus %s: %s", name, error));
+            }
+        });
+    }
+
+    //called on the loading thread of the registry, never on a request thread
+    private static Document loadDocument(String name, Path path, long version) throws IOException {
+        //map (or read) the book from the file
+        long startTime = System.nanoTime();
+        Corpus corpus = Corpus.load(path, CORPUS_BACKEND);
+        System.out.println(String.format("Loaded %s version %d, %d bytes with the %s backend in %d ms",
+                name, version, corpus.length(), CORPUS_BACKEND, (System.nanoTime() - startTime) / 1_000_000));
+
+        WordIndex index = null;
+        if (SEARCH_MODE.equals("index")) {
+            startTime = System.nanoTime();
+            index = WordIndex.build(corpus);
+            System.out.println(String.format("Indexed %d terms (%d distinct) of %s version %d in %d ms, ~%d KB",
+                    index.totalTerms(), index.size(), name, version, (System.nanoTime() - startTime) / 1_000_000,
+                    index.estimatedSizeInBytes() / 1024));
+        }
+
+        //the cached counts belong to a single version of the text
+        ResultCache cache = CACHE_ENTRIES > 0 ? new ResultCache(CACHE_ENTRIES, CACHE_BYTES) : null;
+        return new Document(name, version, corpus, index, cache);
+    }
+
     private static class WordCountHandler implements HttpHandler {
-        private String text;
+        //with the virtual executor every request has a new thread, so these are allocated per request
+        private static final ThreadLocal<byte[]> WORD_BUFFER = ThreadLocal.withInitial(() -> new byte[Corpus.MAX_WORD_LENGTH]);
+        private static final ThreadLocal<byte[]> RESPONSE_BUFFER =
+                ThreadLocal.withInitial(() -> new byte[SearchCodec.MAX_RESPONSE_LENGTH]);
+
+        private SearchService searchService;
+        //null when the route is not measured
+        private RouteMetrics metrics;
+
+        public WordCountHandler(SearchService searchService, RouteMetrics metrics) {
+            this.searchService = searchService;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            if (AdmissionControl.isShed()) {
+                httpExchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+                httpExchange.sendResponseHeaders(503, -1);
+                httpExchange.close();
+                return;
+            }
+
+            long startTime = metrics != null ? System.nanoTime() : 0;
+
+            //the buffers belong to the thread, so they are reused by all the requests it serves
+            String rawQuery = httpExchange.getRequestURI().getRawQuery();
+            byte[] word = WORD_BUFFER.get();
+            int wordLength = SearchCodec.decodeWord(rawQuery, word);
+            if (wordLength < 0) {
+                httpExchange.sendResponseHeaders(400, -1);
+                httpExchange.close();
+                return;
+            }
+
+            //the whole request is served from this version, even if a new one is published in the meantime
+            Document document = SearchService.findDocument(searchService.getRegistry(), rawQuery);
+            if (document == null) {
+                httpExchange.sendResponseHeaders(404, -1);
+                httpExchange.close();
+                return;
+            }
+
+            long count = searchService.countWord(document, word, wordLength);
+
+            byte[] response = RESPONSE_BUFFER.get();
+            int responseLength = SearchCodec.encodeDecimal(count, response);
+            long writeStartTime = metrics != null ? System.nanoTime() : 0;
+            httpExchange.sendResponseHeaders(200, responseLength);
+            OutputStream outputStream = httpExchange.getResponseBody();
+            outputStream.write(response, 0, responseLength);
+            outputStream.close();
+
+            if (metrics != null) {
+                metrics.recordCompute(writeStartTime - startTime);
+                metrics.recordWrite(System.nanoTime() - writeStartTime);
+            }
+        }
+    }
+
+    private static class BatchCountHandler implements HttpHandler {
+        private static final int MAX_BODY_SIZE = 64 * 1024;
+        //bounds the size of the automaton built for a single request
+        private static final int MAX_BATCH_SIZE = 16 * 1024;
+
+        private CorpusRegistry registry;
+        //null when the route is not measured
+        private RouteMetrics metrics;
 
-        public WordCountHandler(String text) {
-            this.text = text;
+        public BatchCountHandler(CorpusRegistry registry, RouteMetrics metrics) {
+            this.registry = registry;
+            this.metrics = metrics;
         }
 
         @Override
         public void handle(HttpExchange httpExchange) throws IOException {
-            String query = httpExchange.getRequestURI().getQuery();
-            String[] keyValue = query.split("=");
-            String action = keyValue[0];
-            String word = keyValue[1];
-            if (!action.equals("word")) {
-                httpExchange.sendResponseHeaders(400, 0);
+            if (AdmissionControl.isShed()) {
+                httpExchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+                httpExchange.sendResponseHeaders(503, -1);
+                httpExchange.close();
+                return;
+            }
+
+            long startTime = metrics != null ? System.nanoTime() : 0;
+
+            List<byte[]> words = readWords(httpExchange);
+            if (words == null) {
+                httpExchange.sendResponseHeaders(400, -1);
+                httpExchange.close();
+                return;
+            }
+
+            Document document = SearchService.findDocument(registry, httpExchange.getRequestURI().getRawQuery());
+            if (document == null) {
+                httpExchange.sendResponseHeaders(404, -1);
+                httpExchange.close();
                 return;
             }
 
-            long count = countWord(word);
+            int batchSize = 0;
+            for (byte[] word : words) {
+                batchSize += word.length;
+                if (word.length == 0 || batchSize > MAX_BATCH_SIZE) {
+                    httpExchange.sendResponseHeaders(400, -1);
+                    httpExchange.close();
+                    return;
+                }
+            }
+
+            long[] counts = countWords(document, words);
 
-            byte[] response = Long.toString(count).getBytes();
+            StringBuilder responseText = new StringBuilder();
+            for (long count : counts) {
+                responseText.append(count).append('\n');
+            }
+            byte[] response = responseText.toString().getBytes(StandardCharsets.UTF_8);
+            long writeStartTime = metrics != null ? System.nanoTime() : 0;
             httpExchange.sendResponseHeaders(200, response.length);
             OutputStream outputStream = httpExchange.getResponseBody();
             outputStream.write(response);
             outputStream.close();
+
+            if (metrics != null) {
+                metrics.recordCompute(writeStartTime - startTime);
+                metrics.recordWrite(System.nanoTime() - writeStartTime);
+            }
+        }
+
+        //the words of "words=a,b,c" in the query, or one word per line in the body of a POST, as UTF-8 bytes,
+        //null if there are none or one of them is malformed
+        private List<byte[]> readWords(HttpExchange httpExchange) throws IOException {
+            if (httpExchange.getRequestMethod().equals("POST")) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                try (InputStream inputStream = httpExchange.getRequestBody()) {
+                    byte[] buffer = new byte[4096];
+                    int bytesRead;
+                    while ((bytesRead = inputStream.read(buffer)) >= 0) {
+                        body.write(buffer, 0, bytesRead);
+                        if (body.size() > MAX_BODY_SIZE) {
+                            return null;
+                        }
+                    }
+                }
+
+                List<byte[]> words = new ArrayList<>();
+                for (String line : new String(body.toByteArray(), StandardCharsets.UTF_8).split("\r?\n")) {
+                    if (!line.isEmpty()) {
+                        words.add(line.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                return words.isEmpty() ? null : words;
+            }
+
+            //split the raw query, then decode every word, so an escaped '&', ',' or '=' stays in its word
+            String rawQuery = httpExchange.getRequestURI().getRawQuery();
+            int valueStart = SearchCodec.findParameter(rawQuery, "words");
+            if (valueStart < 0) {
+                return null;
+            }
+            int valueEnd = SearchCodec.parameterEnd(rawQuery, valueStart);
+            if (valueStart == valueEnd) {
+                return null;
+            }
+            byte[] buffer = new byte[Corpus.MAX_WORD_LENGTH];
+            List<byte[]> words = new ArrayList<>();
+            int wordStart = valueStart;
+            while (wordStart <= valueEnd) {
+                int wordEnd = rawQuery.indexOf(',', wordStart);
+                if (wordEnd < 0 || wordEnd > valueEnd) {
+                    wordEnd = valueEnd;
+                }
+                int wordLength = SearchCodec.percentDecode(rawQuery, wordStart, wordEnd, buffer);
+                if (wordLength < 0) {
+                    return null;
+                }
+                words.add(Arrays.copyOf(buffer, wordLength));
+                wordStart = wordEnd + 1;
+            }
+            return words;
         }
 
-        private long countWord(String word) {
-            long count = 0;
-            int index = 0;
-            while (index >= 0) {
-                index = text.indexOf(word, index);
+        //the words the index can answer are looked up there, all the others are counted together in a single pass
+        private long[] countWords(Document document, List<byte[]> words) {
+            WordIndex index = document.getIndex();
+            long[] counts = new long[words.size()];
+            List<Integer> scannedWordIndexes = new ArrayList<>();
+            List<byte[]> scannedWords = new ArrayList<>();
+            for (int i = 0; i < words.size(); i++) {
+                byte[] word = words.get(i);
+                if (index != null && WordIndex.isSingleTerm(word, word.length)) {
+                    counts[i] = index.count(word);
+                } else {
+                    scannedWordIndexes.add(i);
+                    scannedWords.add(word);
+                }
+            }
 
-                if (index >= 0) {
-                    count++;
-                    index++;
+            if (!scannedWords.isEmpty()) {
+                long[] scannedCounts = new AhoCorasick(scannedWords).countOccurrences(document.getCorpus());
+                for (int i = 0; i < scannedCounts.length; i++) {
+                    counts[scannedWordIndexes.get(i)] = scannedCounts[i];
                 }
             }
-            return count;
+            return counts;
+        }
+    }
+
+    private static class ReloadHandler implements HttpHandler {
+        private CorpusRegistry registry;
+
+        public ReloadHandler(CorpusRegistry registry) {
+            this.registry = registry;
+        }
+
+        //answers right away, the corpus is swapped in once it is loaded
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            //a reload reads and indexes a whole book, not something to let any client trigger
+            if (!REMOTE_RELOAD && !httpExchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+                httpExchange.sendResponseHeaders(403, -1);
+                httpExchange.close();
+                return;
+            }
+
+            String rawQuery = httpExchange.getRequestURI().getRawQuery();
+            int nameStart = SearchCodec.findParameter(rawQuery, "corpus");
+            String name = nameStart < 0
+                    ? registry.getDefaultName()
+                    : rawQuery.substring(nameStart, SearchCodec.parameterEnd(rawQuery, nameStart));
+            if (!registry.getPaths().containsKey(name)) {
+                httpExchange.sendResponseHeaders(404, -1);
+                httpExchange.close();
+                return;
+            }
+
+            reload(registry, name);
+
+            byte[] response = ("Reloading " + name + "\n").getBytes(StandardCharsets.UTF_8);
+            httpExchange.sendResponseHeaders(202, response.length);
+            OutputStream outputStream = httpExchange.getResponseBody();
+            outputStream.write(response);
+            outputStream.close();
+        }
+    }
+
+    private static class TimingFilter extends Filter {
+        private RouteMetrics metrics;
+
+        public TimingFilter(RouteMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void doFilter(HttpExchange httpExchange, Chain chain) throws IOException {
+            long startTime = System.nanoTime();
+            try {
+                chain.doFilter(httpExchange);
+            } finally {
+                //-1 if the handler threw before sending the headers
+                metrics.recordResponse(httpExchange.getResponseCode(), System.nanoTime() - startTime);
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Measures the latency and counts the responses of " + metrics.getRoute();
+        }
+    }
+
+    private static class MetricsHandler implements HttpHandler {
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+        private AdmissionControl admissionControl;
+        //-1 when the executor has no fixed pool
+        private int poolSize;
+        private CorpusRegistry registry;
+        //empty when the routes are not measured
+        private List<RouteMetrics> routes;
+        private long startTime = System.nanoTime();
+        //the latencies are read into this one histogram, one at a time, instead of a new one for every read
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        public MetricsHandler(AdmissionControl admissionControl, int poolSize, CorpusRegistry registry,
+                              List<RouteMetrics> routes) {
+            this.admissionControl = admissionControl;
+            this.poolSize = poolSize;
+            this.registry = registry;
+            this.routes = routes;
+        }
+
+        //served even when the queue is full, that is exactly when the numbers are interesting
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            String text;
+            synchronized (latency) {
+                text = format();
+            }
+
+            byte[] response = text.getBytes(StandardCharsets.UTF_8);
+            httpExchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            httpExchange.sendResponseHeaders(200, response.length);
+            OutputStream outputStream = httpExchange.getResponseBody();
+            outputStream.write(response);
+            outputStream.close();
+        }
+
+        private String format() {
+            StringBuilder metrics = new StringBuilder();
+            metrics.append("queue_depth ").append(admissionControl.getQueueDepth()).append('\n');
+            metrics.append("queue_max_depth ").append(admissionControl.getMaxQueueDepth()).append('\n');
+            metrics.append("queue_peak_depth ").append(admissionControl.getPeakQueueDepth()).append('\n');
+            metrics.append("requests_admitted_total ").append(admissionControl.getAdmittedRequests()).append('\n');
+            metrics.append("requests_rejected_total ").append(admissionControl.getRejectedRequests()).append('\n');
+            metrics.append("requests_expired_total ").append(admissionControl.getExpiredRequests()).append('\n');
+            metrics.append("requests_dropped_total ").append(admissionControl.getDroppedRequests()).append('\n');
+
+            //the utilization of the executor is the growth of the busy time over the growth of the uptime, per thread
+            if (admissionControl.isTimed()) {
+                metrics.append("uptime_seconds ").append(toSeconds(System.nanoTime() - startTime)).append('\n');
+                //a virtual thread per request has no number of threads to divide the busy time by
+                if (poolSize > 0) {
+                    metrics.append("executor_threads ").append(poolSize).append('\n');
+                }
+                metrics.append("executor_busy_seconds_total ").append(toSeconds(admissionControl.getBusyNanos())).append('\n');
+                appendLatency(metrics, "queue_wait_seconds", "", admissionControl.getQueueWait(latency));
+            }
+
+            for (RouteMetrics route : routes) {
+                String label = "route=\"" + route.getRoute() + "\"";
+                for (int statusClass = 0; statusClass < 6; statusClass++) {
+                    long responses = route.getResponses(statusClass);
+                    if (responses > 0) {
+                        metrics.append("responses_total{").append(label).append(",status=\"")
+                                .append(statusClass == 0 ? "error" : statusClass + "xx").append("\"} ")
+                                .append(responses).append('\n');
+                    }
+                }
+                appendLatency(metrics, "request_seconds", label + ",phase=\"total\"", route.getTotalLatency(latency));
+                appendLatency(metrics, "request_seconds", label + ",phase=\"compute\"", route.getComputeLatency(latency));
+                appendLatency(metrics, "request_seconds", label + ",phase=\"write\"", route.getWriteLatency(latency));
+            }
+            metrics.append("corpus_reloads_total ").append(registry.getReloads()).append('\n');
+            metrics.append("corpus_failed_reloads_total ").append(registry.getFailedReloads()).append('\n');
+            metrics.append("corpus_coalesced_reloads_total ").append(registry.getCoalescedReloads()).append('\n');
+
+            //the counters of the current version of every corpus, they start over with every reload
+            for (Document document : registry.getDocuments()) {
+                String label = "{corpus=\"" + document.getName() + "\"} ";
+                metrics.append("corpus_version").append(label).append(document.getVersion()).append('\n');
+                metrics.append("corpus_size_bytes").append(label).append(document.getCorpus().length()).append('\n');
+
+                ResultCache cache = document.getCache();
+                if (cache != null) {
+                    metrics.append("cache_hits_total").append(label).append(cache.getHits()).append('\n');
+                    metrics.append("cache_misses_total").append(label).append(cache.getMisses()).append('\n');
+                    metrics.append("cache_coalesced_misses_total").append(label).append(cache.getCoalescedMisses()).append('\n');
+                    metrics.append("cache_evictions_total").append(label).append(cache.getEvictions()).append('\n');
+                    metrics.append("cache_entries").append(label).append(cache.getNumberOfEntries()).append('\n');
+                    metrics.append("cache_size_bytes").append(label).append(cache.getSizeInBytes()).append('\n');
+                }
+            }
+
+            return metrics.toString();
+        }
+
+        //name{labels,quantile="q"} for every quantile, the maximum as the quantile 1, then name_sum and name_count
+        //a phase which is not measured by its route has no values, and is left out
+        private static void appendLatency(StringBuilder metrics, String name, String labels, LatencyHistogram latency) {
+            if (latency.getTotalCount() == 0) {
+                return;
+            }
+            String separator = labels.isEmpty() ? "" : ",";
+            for (double quantile : QUANTILES) {
+                metrics.append(name).append('{').append(labels).append(separator).append("quantile=\"").append(quantile)
+                        .append("\"} ").append(toSeconds(latency.getValueAtPercentile(quantile * 100))).append('\n');
+            }
+            metrics.append(name).append('{').append(labels).append(separator).append("quantile=\"1\"} ")
+                    .append(toSeconds(latency.getMax())).append('\n');
+            String sumAndCountLabels = labels.isEmpty() ? " " : "{" + labels + "} ";
+            metrics.append(name).append("_sum").append(sumAndCountLabels)
+                    .append(toSeconds((long) (latency.getMean() * latency.getTotalCount()))).append('\n');
+            metrics.append(name).append("_count").append(sumAndCountLabels).append(latency.getTotalCount()).append('\n');
+        }
+
+        private static String toSeconds(long nanos) {
+            //the scrapers expect a dot whatever the locale
+            return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,277 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//An inverted word index over the book, built once at startup.
+//The book is split into terms (maximal runs of letters and digits) and every distinct term is stored
+//in an open addressing hash table together with the number of times it appears,
+//so a lookup costs O(1) instead of a full scan of the text.
+
+//The table is laid out as parallel arrays (term bytes, hash, count) with linear probing,
+//which keeps the per entry overhead to the UTF-8 bytes of the term and two ints.
+
+public class WordIndex {
+    private static final int INITIAL_CAPACITY = 1 << 14;
+
+    private byte[][] terms;
+    private int[] hashes;
+    private int[] counts;
+    private int mask;
+    private int size;
+    private long totalTerms;
+
+    private WordIndex(int capacity) {
+        terms = new byte[capacity][];
+        hashes = new int[capacity];
+        counts = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    //walks the text one byte at a time, decoding UTF-8 on the fly so letters outside of ASCII are part of the terms
+    //while punctuation like curly quotes and dashes is not
+    public static WordIndex build(Corpus corpus) {
+        WordIndex index = new WordIndex(INITIAL_CAPACITY);
+
+        //the current term, terms longer than MAX_WORD_LENGTH cannot be searched for anyway and are skipped
+        byte[] term = new byte[Corpus.MAX_WORD_LENGTH];
+        int termLength = 0;
+        boolean termTooLong = false;
+
+        //the bytes of the code point being decoded
+        byte[] codePointBytes = new byte[4];
+        int codePointLength = 0;
+        int remainingBytes = 0;
+        int codePoint = 0;
+
+        for (int segmentIndex = 0; segmentIndex < corpus.numberOfSegments(); segmentIndex++) {
+            ByteBuffer segment = corpus.segment(segmentIndex);
+            int segmentLength = corpus.segmentLength(segmentIndex);
+
+            for (int i = 0; i < segmentLength; i++) {
+                byte b = segment.get(i);
+
+                if (remainingBytes > 0 && (b & 0xC0) == 0x80) {
+                    codePoint = (codePoint << 6) | (b & 0x3F);
+                    codePointBytes[codePointLength++] = b;
+                    remainingBytes--;
+                    if (remainingBytes > 0) {
+                        continue;
+                    }
+                } else {
+                    codePointLength = 0;
+                    codePointBytes[codePointLength++] = b;
+                    if ((b & 0x80) == 0) {
+                        codePoint = b;
+                        remainingBytes = 0;
+                    } else if ((b & 0xE0) == 0xC0) {
+                        codePoint = b & 0x1F;
+                        remainingBytes = 1;
+                    } else if ((b & 0xF0) == 0xE0) {
+                        codePoint = b & 0x0F;
+                        remainingBytes = 2;
+                    } else if ((b & 0xF8) == 0xF0) {
+                        codePoint = b & 0x07;
+                        remainingBytes = 3;
+                    } else {
+                        //a stray continuation byte or an invalid lead byte, treat it as a separator
+                        codePoint = -1;
+                        remainingBytes = 0;
+                    }
+                    if (remainingBytes > 0) {
+                        continue;
+                    }
+                }
+
+                if (codePoint >= 0 && Character.isLetterOrDigit(codePoint)) {
+                    if (termLength + codePointLength <= term.length) {
+                        System.arraycopy(codePointBytes, 0, term, termLength, codePointLength);
+                        termLength += codePointLength;
+                    } else {
+                        termTooLong = true;
+                    }
+                } else {
+                    if (termLength > 0 && !termTooLong) {
+                        index.add(term, termLength);
+                    }
+                    termLength = 0;
+                    termTooLong = false;
+                }
+            }
+        }
+
+        if (termLength > 0 && !termTooLong) {
+            index.add(term, termLength);
+        }
+        return index;
+    }
+
+    //a term is a single maximal run of letters and digits, anything else (phrases, punctuation)
+    //cannot be answered by the index
+    public static boolean isSingleTerm(String word) {
+        if (word.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); ) {
+            int codePoint = word.codePointAt(i);
+            if (!Character.isLetterOrDigit(codePoint)) {
+                return false;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return true;
+    }
+
+    //the same check on the first length bytes of a UTF-8 encoded word, without allocating
+    public static boolean isSingleTerm(byte[] word, int length) {
+        if (length == 0) {
+            return false;
+        }
+        int i = 0;
+        while (i < length) {
+            int b = word[i] & 0xFF;
+            int codePoint;
+            int codePointLength;
+            if (b < 0x80) {
+                codePoint = b;
+                codePointLength = 1;
+            } else if ((b & 0xE0) == 0xC0) {
+                codePoint = b & 0x1F;
+                codePointLength = 2;
+            } else if ((b & 0xF0) == 0xE0) {
+                codePoint = b & 0x0F;
+                codePointLength = 3;
+            } else if ((b & 0xF8) == 0xF0) {
+                codePoint = b & 0x07;
+                codePointLength = 4;
+            } else {
+                return false;
+            }
+
+            if (i + codePointLength > length) {
+                return false;
+            }
+            for (int j = 1; j < codePointLength; j++) {
+                int continuation = word[i + j] & 0xFF;
+                if ((continuation & 0xC0) != 0x80) {
+                    return false;
+                }
+                codePoint = (codePoint << 6) | (continuation & 0x3F);
+            }
+
+            if (!Character.isLetterOrDigit(codePoint)) {
+                return false;
+            }
+            i += codePointLength;
+        }
+        return true;
+    }
+
+    //the word is expected to be UTF-8 encoded
+    public long count(byte[] word) {
+        return count(word, word.length);
+    }
+
+    //looks up the first length bytes of the word, without allocating
+    public long count(byte[] word, int length) {
+        int hash = hash(word, length);
+        int slot = mix(hash) & mask;
+        while (terms[slot] != null) {
+            if (hashes[slot] == hash && equals(terms[slot], word, length)) {
+                return counts[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long totalTerms() {
+        return totalTerms;
+    }
+
+    //a rough estimate of the memory held by the index: the three arrays plus the bytes of every term
+    public long estimatedSizeInBytes() {
+        long bytes = 3L * (16 + 4L * terms.length);
+        for (byte[] term : terms) {
+            if (term != null) {
+                bytes += 16 + term.length;
+            }
+        }
+        return bytes;
+    }
+
+    private void add(byte[] term, int length) {
+        totalTerms++;
+        int hash = hash(term, length);
+        int slot = mix(hash) & mask;
+        while (terms[slot] != null) {
+            if (hashes[slot] == hash && equals(terms[slot], term, length)) {
+                counts[slot]++;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        terms[slot] = Arrays.copyOf(term, length);
+        hashes[slot] = hash;
+        counts[slot] = 1;
+        size++;
+
+        //keep the load factor under 0.5 so the probe sequences stay short
+        if (size * 2 > terms.length) {
+            resize();
+        }
+    }
+
+    private void resize() {
+        byte[][] oldTerms = terms;
+        int[] oldHashes = hashes;
+        int[] oldCounts = counts;
+
+        int capacity = oldTerms.length * 2;
+        terms = new byte[capacity][];
+        hashes = new int[capacity];
+        counts = new int[capacity];
+        mask = capacity - 1;
+
+        for (int i = 0; i < oldTerms.length; i++) {
+            if (oldTerms[i] != null) {
+                int slot = mix(oldHashes[i]) & mask;
+                while (terms[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                terms[slot] = oldTerms[i];
+                hashes[slot] = oldHashes[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    private static boolean equals(byte[] term, byte[] bytes, int length) {
+        if (term.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (term[i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash;
+    }
+
+    //the polynomial hash is weak in the low bits for short terms, spread it before masking
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//The inventory without a lock: a ConcurrentSkipListMap from a price to an AtomicInteger count.
+
+//With the ReentrantReadWriteLock of Main.InventoryDatabase, every reader increments and decrements the count
+//of readers of the lock, a single cache line which bounces between the cores of all the readers, and the writer
+//stops all of them for every change. Here a reader only reads: the nodes of the skip list and the counts,
+//which stay in the caches of all the cores until the writer changes one of them, and a writer only stops
+//the readers of the count it changes, for the time of a compare and swap.
+
+//The price of it: a range query is not atomic, the writes which happen while it runs may or may not be counted
+//(each count is read once, so the result is the count of every price at some point during the query).
+//The prices whose count goes back to 0 keep their entry, so a count is never removed under a concurrent addItem;
+//there are no more entries than distinct prices ever added (HIGHEST_PRICE in the harness of Main).
+
+//LongAdder counts would make concurrent addItems on the same price cheaper, but removeItem must not take
+//the count below 0, which needs a compare and swap on the count itself.
+
+public class ConcurrentInventoryDatabase implements Inventory {
+    private final ConcurrentSkipListMap<Integer, AtomicInteger> priceToCountMap = new ConcurrentSkipListMap<>();
+
+    @Override
+    public int getNumberOfItemsInPriceRange(int lowerBound, int upperBound) {
+        if (lowerBound > upperBound) {
+            return 0;
+        }
+        int sum = 0;
+        for (AtomicInteger numberOfItemsForPrice : priceToCountMap.subMap(lowerBound, true, upperBound, true).values()) {
+            sum += numberOfItemsForPrice.get();
+        }
+        return sum;
+    }
+
+    @Override
+    public void addItem(int price) {
+        AtomicInteger numberOfItemsForPrice = priceToCountMap.get(price);
+        if (numberOfItemsForPrice == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            numberOfItemsForPrice = priceToCountMap.putIfAbsent(price, newCount);
+            if (numberOfItemsForPrice == null) {
+                numberOfItemsForPrice = newCount;
+            }
+        }
+        numberOfItemsForPrice.incrementAndGet();
+    }
+
+    @Override
+    public void removeItem(int price) {
+        AtomicInteger numberOfItemsForPrice = priceToCountMap.get(price);
+        if (numberOfItemsForPrice == null) {
+            return;
+        }
+        int count;
+        do {
+            count = numberOfItemsForPrice.get();
+            if (count == 0) {
+                return;
+            }
+        } while (!numberOfItemsForPrice.compareAndSet(count, count - 1));
+    }
+}
@@ -0,0 +1,63 @@
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//The inventory as a Fenwick tree over the prices, from 0 to highestPrice - 1: a range query and a change
+//are both O(log P), with no allocation, instead of a walk over every price of the range (see FenwickTree).
+
+//The tree is guarded by a ReentrantReadWriteLock, like the TreeMap of Main.InventoryDatabase.
+//applyDeltas changes many prices under a single write lock.
+
+public class FenwickInventoryDatabase implements Inventory {
+    private final FenwickTree tree;
+    private final ReentrantReadWriteLock reentrantReadWriteLock = new ReentrantReadWriteLock();
+    private final Lock readLock = reentrantReadWriteLock.readLock();
+    private final Lock writeLock = reentrantReadWriteLock.writeLock();
+
+    //an inventory of the prices from 0 to highestPrice - 1
+    public FenwickInventoryDatabase(int highestPrice) {
+        this.tree = new FenwickTree(highestPrice);
+    }
+
+    @Override
+    public int getNumberOfItemsInPriceRange(int lowerBound, int upperBound) {
+        readLock.lock();
+        try {
+            return tree.count(lowerBound, upperBound);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void addItem(int price) {
+        tree.checkPrice(price);
+        writeLock.lock();
+        try {
+            tree.addItem(price);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void removeItem(int price) {
+        tree.checkPrice(price);
+        writeLock.lock();
+        try {
+            tree.removeItem(price);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void applyDeltas(int[] deltas) {
+        tree.checkDeltas(deltas);
+        writeLock.lock();
+        try {
+            tree.applyDeltas(deltas);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+//A Fenwick tree (binary indexed tree) over the prices, from 0 to highestPrice - 1, shared by the inventories
+//which keep their items in one (FenwickInventoryDatabase, OptimisticInventoryDatabase); not thread safe,
+//those inventories guard it with their own locks.
+
+//The TreeMap of Main.InventoryDatabase answers a range query by walking every distinct price of the range,
+//unboxing an Integer for each, so a query costs up to HIGHEST_PRICE steps. The Fenwick tree keeps, in an int[],
+//the counts of ranges of prices of 1, 2, 4... prices, so the number of items under a price is the sum of at most
+//log2(highestPrice) of them, and a change of a count changes as many of them: both are O(log P), with no allocation.
+//The counts of the prices themselves are kept too, so removeItem knows whether there is an item to remove.
+
+//The prices must be known ahead (HIGHEST_PRICE in the harness of Main); the queries may go beyond them.
+//applyDeltas changes many prices at once, and builds the tree again when it changes many of them.
+
+class FenwickTree {
+    private static final int REBUILD_DIVISOR = 16;
+
+    private final int highestPrice;
+    //tree[i] is the number of items of the prices [i - (i & -i), i), i from 1 to highestPrice
+    private final int[] tree;
+    private final int[] priceToCount;
+
+    //a tree of the prices from 0 to highestPrice - 1
+    FenwickTree(int highestPrice) {
+        if (highestPrice <= 0) {
+            throw new IllegalArgumentException("Invalid highest price " + highestPrice);
+        }
+        this.highestPrice = highestPrice;
+        this.tree = new int[highestPrice + 1];
+        this.priceToCount = new int[highestPrice];
+    }
+
+    //the number of items whose price is in [lowerBound, upperBound]; only reads the tree, so it may run
+    //while a writer changes it, and then gives a wrong count but no exception (see OptimisticInventoryDatabase)
+    int count(int lowerBound, int upperBound) {
+        //the prices there can be, the rest of the range is empty
+        int from = Math.max(lowerBound, 0);
+        int to = Math.min(upperBound, highestPrice - 1);
+        if (from > to) {
+            return 0;
+        }
+        return countBelow(to + 1) - countBelow(from);
+    }
+
+    void addItem(int price) {
+        priceToCount[price]++;
+        add(price, 1);
+    }
+
+    void removeItem(int price) {
+        if (priceToCount[price] == 0) {
+            return;
+        }
+        priceToCount[price]--;
+        add(price, -1);
+    }
+
+    //a change of a few prices is added to the tree, price by price; past REBUILD_DIVISOR of the prices, the tree
+    //is built again from the counts, in O(P) instead of O(changed prices * log P)
+    void applyDeltas(int[] deltas) {
+        int changedPrices = 0;
+        for (int price = 0; price < deltas.length; price++) {
+            if (deltas[price] == 0) {
+                continue;
+            }
+            int newCount = (int) Math.max(0, Math.min(Integer.MAX_VALUE, (long) priceToCount[price] + deltas[price]));
+            changedPrices++;
+            if (changedPrices * REBUILD_DIVISOR <= priceToCount.length) {
+                add(price, newCount - priceToCount[price]);
+            }
+            priceToCount[price] = newCount;
+        }
+        if (changedPrices * REBUILD_DIVISOR > priceToCount.length) {
+            build();
+        }
+    }
+
+    //checked before taking a lock, so a bad price does not hold up the readers
+    void checkPrice(int price) {
+        if (price < 0 || price >= highestPrice) {
+            throw new IllegalArgumentException("Price " + price + " out of [0, " + highestPrice + ")");
+        }
+    }
+
+    void checkDeltas(int[] deltas) {
+        checkDeltas(deltas, highestPrice);
+    }
+
+    //the prices of the deltas which are not 0 must be prices of the inventory
+    static void checkDeltas(int[] deltas, int highestPrice) {
+        for (int price = highestPrice; price < deltas.length; price++) {
+            if (deltas[price] != 0) {
+                throw new IllegalArgumentException("Price " + price + " out of [0, " + highestPrice + ")");
+            }
+        }
+    }
+
+    //the number of items of the prices [0, price)
+    private int countBelow(int price) {
+        int count = 0;
+        for (int i = price; i > 0; i -= i & -i) {
+            count += tree[i];
+        }
+        return count;
+    }
+
+    private void add(int price, int delta) {
+        for (int i = price + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    //every node gets its own count, and is added to its parent once complete
+    private void build() {
+        System.arraycopy(priceToCount, 0, tree, 1, priceToCount.length);
+        for (int i = 1; i < tree.length; i++) {
+            int parent = i + (i & -i);
+            if (parent < tree.length) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+//The operations of the inventory the harness of Main measures: a number of items for every price,
+//and the number of items in a range of prices.
+
+//Main.InventoryDatabase implements them with a TreeMap behind a ReentrantReadWriteLock, the other implementations
+//give the same answers (InventoryCheck verifies it) with less contention between the threads.
+
+public interface Inventory {
+    //the number of items whose price is in [lowerBound, upperBound]
+    int getNumberOfItemsInPriceRange(int lowerBound, int upperBound);
+
+    void addItem(int price);
+
+    //removes an item of that price, if there is one
+    void removeItem(int price);
+
+    //adds deltas[price] items of every price, or removes -deltas[price] of them (as many as there are),
+    //as a single change: the inventories which lock take their write lock once for the whole array;
+    //the array is only read during the call, the caller may reuse it afterwards
+    default void applyDeltas(int[] deltas) {
+        for (int price = 0; price < deltas.length; price++) {
+            for (int i = 0; i < deltas[price]; i++) {
+                addItem(price);
+            }
+            for (int i = 0; i > deltas[price]; i--) {
+                removeItem(price);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+//Measures the latency of the range queries while a writer restocks the inventory in bursts, like the initial loop
+//of Main.measureReading: 100,000 items added, then 100,000 removed, over and over, on top of a stock of 100,000.
+
+//The burst is written an item at a time (a write lock per item), as a single applyDeltas (a write lock per burst),
+//and an item at a time through a WriteCombiningInventory (a write lock per merge). For every way, it prints
+//the percentiles of the latency of the queries and the number of items the writer changed per second.
+//The reader threads can be given as the first argument, 4 by default.
+
+public class InventoryBurstBenchmark {
+    private static final int BURST_SIZE = 100000;
+    private static final int QUERIES_PER_READER = 200000;
+    private static final int MAX_PENDING_CHANGES = 4096;
+    private static final long FLUSH_INTERVAL_MILLIS = 10;
+
+    public static void main(String[] args) throws InterruptedException {
+        int numberOfReaderThreads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+
+        List<Way> ways = new ArrayList<>();
+        ways.add(new Way("TreeMap, item by item", Main.InventoryDatabase::new, false));
+        ways.add(new Way("TreeMap, applyDeltas", Main.InventoryDatabase::new, true));
+        ways.add(new Way("TreeMap, write combining", () -> new WriteCombiningInventory(new Main.InventoryDatabase(),
+                Main.HIGHEST_PRICE, MAX_PENDING_CHANGES, FLUSH_INTERVAL_MILLIS), false));
+        ways.add(new Way("Fenwick tree, item by item", () -> new FenwickInventoryDatabase(Main.HIGHEST_PRICE), false));
+        ways.add(new Way("Fenwick tree, applyDeltas", () -> new FenwickInventoryDatabase(Main.HIGHEST_PRICE), true));
+        ways.add(new Way("Fenwick tree, write combining", () -> new WriteCombiningInventory(
+                new FenwickInventoryDatabase(Main.HIGHEST_PRICE), Main.HIGHEST_PRICE, MAX_PENDING_CHANGES,
+                FLUSH_INTERVAL_MILLIS), false));
+
+        System.out.println(String.format("%d readers, bursts of %d items, write combining of %d changes or %d ms",
+                numberOfReaderThreads, BURST_SIZE, MAX_PENDING_CHANGES, FLUSH_INTERVAL_MILLIS));
+        System.out.println(String.format("%-30s %10s %10s %10s %10s %14s", "", "p50 us", "p99 us", "p99.9 us", "max us",
+                "items/s"));
+        for (Way way : ways) {
+            measure(way.name, way.inventory.get(), way.batched, numberOfReaderThreads);
+        }
+    }
+
+    //an inventory, and whether the writer changes it with applyDeltas (batched) or an item at a time
+    private static class Way {
+        private final String name;
+        private final Supplier<Inventory> inventory;
+        private final boolean batched;
+
+        Way(String name, Supplier<Inventory> inventory, boolean batched) {
+            this.name = name;
+            this.inventory = inventory;
+            this.batched = batched;
+        }
+    }
+
+    private static void measure(String name, Inventory inventory, boolean batched, int numberOfReaderThreads)
+            throws InterruptedException {
+        //the stock the bursts come on top of, so the queries never see an empty inventory
+        int[] stock = new int[Main.HIGHEST_PRICE];
+        Arrays.fill(stock, Main.INITIAL_NUMBER_OF_ITEMS / Main.HIGHEST_PRICE);
+        inventory.applyDeltas(stock);
+
+        long[] changedItems = new long[1];
+        Thread writer = new Thread(() -> {
+            Random random = new Random(42);
+            int[] prices = new int[BURST_SIZE];
+            int[] deltas = new int[Main.HIGHEST_PRICE];
+            while (!Thread.currentThread().isInterrupted()) {
+                for (int sign = 1; sign >= -1; sign -= 2) {
+                    if (sign == 1) {
+                        for (int i = 0; i < prices.length; i++) {
+                            prices[i] = random.nextInt(Main.HIGHEST_PRICE);
+                        }
+                    }
+                    if (batched) {
+                        Arrays.fill(deltas, 0);
+                        for (int price : prices) {
+                            deltas[price] += sign;
+                        }
+                        inventory.applyDeltas(deltas);
+                    } else {
+                        for (int price : prices) {
+                            if (sign == 1) {
+                                inventory.addItem(price);
+                            } else {
+                                inventory.removeItem(price);
+                            }
+                        }
+                    }
+                    changedItems[0] += prices.length;
+                }
+            }
+        });
+        writer.setDaemon(true);
+
+        long[][] latencies = new long[numberOfReaderThreads][QUERIES_PER_READER];
+        List<Thread> readers = new ArrayList<>();
+        for (int readerIndex = 0; readerIndex < numberOfReaderThreads; readerIndex++) {
+            long[] readerLatencies = latencies[readerIndex];
+            Thread reader = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < readerLatencies.length; i++) {
+                    int upperBoundPrice = random.nextInt(Main.HIGHEST_PRICE);
+                    int lowerBoundPrice = upperBoundPrice > 0 ? random.nextInt(upperBoundPrice) : 0;
+                    long startTime = System.nanoTime();
+                    inventory.getNumberOfItemsInPriceRange(lowerBoundPrice, upperBoundPrice);
+                    readerLatencies[i] = System.nanoTime() - startTime;
+                }
+            });
+            reader.setDaemon(true);
+            readers.add(reader);
+        }
+
+        long startTime = System.nanoTime();
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        writer.interrupt();
+        writer.join();
+        long elapsedTime = System.nanoTime() - startTime;
+        if (inventory instanceof WriteCombiningInventory) {
+            ((WriteCombiningInventory) inventory).close();
+        }
+
+        long[] allLatencies = new long[numberOfReaderThreads * QUERIES_PER_READER];
+        for (int readerIndex = 0; readerIndex < numberOfReaderThreads; readerIndex++) {
+            System.arraycopy(latencies[readerIndex], 0, allLatencies, readerIndex * QUERIES_PER_READER, QUERIES_PER_READER);
+        }
+        Arrays.sort(allLatencies);
+        System.out.println(String.format("%-30s %10.1f %10.1f %10.1f %10.1f %14.0f", name,
+                percentile(allLatencies, 0.5), percentile(allLatencies, 0.99), percentile(allLatencies, 0.999),
+                allLatencies[allLatencies.length - 1] / 1e3, changedItems[0] / (elapsedTime / 1e9)));
+    }
+
+    //in microseconds
+    private static double percentile(long[] sortedLatencies, double quantile) {
+        return sortedLatencies[(int) Math.min(sortedLatencies.length - 1, sortedLatencies.length * quantile)] / 1e3;
+    }
+}
@@ -0,0 +1,253 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+//Checks that every Inventory gives exactly the answers of Main.InventoryDatabase (the TreeMap behind a lock),
+//a differential test: on random sequences of additions, removals, batches of changes and queries, with dense
+//and sparse prices, and ranges which are empty, reversed or out of the prices; then that concurrent additions
+//and removals lose no item, that the changes buffered by a WriteCombiningInventory are all applied,
+//and that the snapshots of a VersionedInventoryDatabase do not change.
+
+//It exits with status 1 if any answer differs.
+
+public class InventoryCheck {
+    private static final int OPERATIONS = 200000;
+
+    public static void main(String[] args) throws InterruptedException {
+        //the inventories for prices from 0 to the given highest price
+        Map<String, IntFunction<Inventory>> inventories = new LinkedHashMap<>();
+        inventories.put("ConcurrentSkipListMap", highestPrice -> new ConcurrentInventoryDatabase());
+        inventories.put("Fenwick tree", FenwickInventoryDatabase::new);
+        inventories.put("Fenwick tree, StampedLock", OptimisticInventoryDatabase::new);
+        inventories.put("persistent segment tree", VersionedInventoryDatabase::new);
+        //a merge after every change, which gives the answers of the inventory itself
+        inventories.put("write combining, 1 change", highestPrice ->
+                new WriteCombiningInventory(new FenwickInventoryDatabase(highestPrice), highestPrice, 1, 1000));
+
+        int failures = 0;
+        for (Map.Entry<String, IntFunction<Inventory>> inventory : inventories.entrySet()) {
+            //few prices (most are present) and many (most are missing)
+            for (int highestPrice : new int[]{10, Main.HIGHEST_PRICE, 100000}) {
+                failures += checkSequential(inventory.getKey(), inventory.getValue().apply(highestPrice), highestPrice);
+            }
+            failures += checkConcurrent(inventory.getKey(), inventory.getValue().apply(Main.HIGHEST_PRICE));
+        }
+        failures += checkWriteCombining();
+        failures += checkSnapshots();
+
+        System.out.println(failures == 0 ? "All answers match" : failures + " checks failed");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    //returns the number of failures, 0 or 1
+    private static int checkSequential(String name, Inventory inventory, int highestPrice) {
+        Main.InventoryDatabase expected = new Main.InventoryDatabase();
+        Random random = new Random(highestPrice);
+        for (int i = 0; i < OPERATIONS; i++) {
+            //a batch of changes for an operation out of a thousand
+            int operation = random.nextInt(1000) == 0 ? 10 : random.nextInt(10);
+            if (operation < 4) {
+                int price = random.nextInt(highestPrice);
+                expected.addItem(price);
+                inventory.addItem(price);
+            } else if (operation < 6) {
+                int price = random.nextInt(highestPrice);
+                expected.removeItem(price);
+                inventory.removeItem(price);
+            } else if (operation == 10) {
+                //a few prices, or enough of them for the Fenwick trees to be built again (not with the sparse prices,
+                //whose TreeMap would fill up and make the queries slow)
+                int[] deltas = new int[highestPrice];
+                int changedPrices = random.nextInt(10) > 0 || highestPrice > Main.HIGHEST_PRICE ? 3 : highestPrice / 4 + 1;
+                for (int j = 0; j < changedPrices; j++) {
+                    deltas[random.nextInt(highestPrice)] = random.nextInt(7) - 3;
+                }
+                expected.applyDeltas(deltas);
+                inventory.applyDeltas(deltas);
+            } else {
+                //a bit beyond the prices on both sides, up to HIGHEST_PRICE wide, and reversed for a query out of four
+                int lowerBound = random.nextInt(highestPrice + 20) - 10;
+                int upperBound = lowerBound + random.nextInt(Math.min(highestPrice / 2, Main.HIGHEST_PRICE) + 1)
+                        * (operation == 6 ? -1 : 1);
+                int expectedCount = expected.getNumberOfItemsInPriceRange(lowerBound, upperBound);
+                int count = inventory.getNumberOfItemsInPriceRange(lowerBound, upperBound);
+                if (count != expectedCount) {
+                    System.out.println(String.format("%s, prices under %d, operation %d: [%d, %d] has %d items instead of %d",
+                            name, highestPrice, i, lowerBound, upperBound, count, expectedCount));
+                    return 1;
+                }
+            }
+        }
+        System.out.println(String.format("%s, prices under %d: ok", name, highestPrice));
+        return 0;
+    }
+
+    //threads buffering their changes, merged by getExactNumberOfItemsInPriceRange, by flush, when the buffers are full
+    //and every millisecond; they only remove the items they added, for which combining the changes changes nothing;
+    //returns the number of failures, 0 or 1
+    private static int checkWriteCombining() throws InterruptedException {
+        WriteCombiningInventory inventory = new WriteCombiningInventory(
+                new FenwickInventoryDatabase(Main.HIGHEST_PRICE), Main.HIGHEST_PRICE, 100, 1);
+        int[] expectedCounts = new int[Main.HIGHEST_PRICE];
+        List<Thread> threads = new ArrayList<>();
+        //4 waves of 4 threads, so the buffers of the threads which ended are dropped along the way
+        for (int threadIndex = 0; threadIndex < 16; threadIndex++) {
+            int seed = threadIndex;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(seed);
+                List<Integer> added = new ArrayList<>();
+                for (int i = 0; i < OPERATIONS / 16; i++) {
+                    if (added.isEmpty() || random.nextInt(3) > 0) {
+                        int price = random.nextInt(Main.HIGHEST_PRICE);
+                        inventory.addItem(price);
+                        added.add(price);
+                    } else {
+                        inventory.removeItem(added.remove(random.nextInt(added.size())));
+                    }
+                    if (random.nextInt(1000) == 0) {
+                        inventory.flush();
+                    }
+                }
+                synchronized (expectedCounts) {
+                    for (int price : added) {
+                        expectedCounts[price]++;
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+            if (threads.size() == 4) {
+                for (Thread wave : threads) {
+                    wave.join();
+                }
+                threads.clear();
+            }
+        }
+        Random random = new Random();
+        for (int i = 0; i < 1000; i++) {
+            int upperBound = random.nextInt(Main.HIGHEST_PRICE);
+            int lowerBound = random.nextInt(upperBound + 1);
+            int expectedCount = 0;
+            for (int price = lowerBound; price <= upperBound; price++) {
+                expectedCount += expectedCounts[price];
+            }
+            int count = inventory.getExactNumberOfItemsInPriceRange(lowerBound, upperBound);
+            if (count != expectedCount) {
+                System.out.println(String.format("write combining: [%d, %d] has %d items instead of %d",
+                        lowerBound, upperBound, count, expectedCount));
+                return 1;
+            }
+        }
+        //every writer ended before the merges of the queries
+        if (inventory.getNumberOfBuffers() != 0) {
+            System.out.println("write combining: " + inventory.getNumberOfBuffers() + " buffers of ended threads kept");
+            return 1;
+        }
+        inventory.close();
+        System.out.println("write combining, concurrent: ok");
+        return 0;
+    }
+
+    //snapshots taken along random changes, each checked against the counts of the prices at the time it was taken,
+    //once the changes are all done, while threads keep changing the inventory; returns the number of failures, 0 or 1
+    private static int checkSnapshots() throws InterruptedException {
+        VersionedInventoryDatabase inventory = new VersionedInventoryDatabase(Main.HIGHEST_PRICE);
+        int[] counts = new int[Main.HIGHEST_PRICE];
+        List<VersionedInventoryDatabase.Snapshot> snapshots = new ArrayList<>();
+        List<int[]> snapshotCounts = new ArrayList<>();
+        Random random = new Random(7);
+        for (int i = 0; i < OPERATIONS; i++) {
+            int price = random.nextInt(Main.HIGHEST_PRICE);
+            if (random.nextInt(3) > 0) {
+                inventory.addItem(price);
+                counts[price]++;
+            } else {
+                inventory.removeItem(price);
+                counts[price] = Math.max(0, counts[price] - 1);
+            }
+            if (i % (OPERATIONS / 20) == 0) {
+                snapshots.add(inventory.snapshot());
+                snapshotCounts.add(counts.clone());
+            }
+        }
+
+        List<Thread> writers = new ArrayList<>();
+        for (int threadIndex = 0; threadIndex < 2; threadIndex++) {
+            Thread writer = new Thread(() -> {
+                Random writerRandom = new Random();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    inventory.addItem(writerRandom.nextInt(Main.HIGHEST_PRICE));
+                    inventory.removeItem(writerRandom.nextInt(Main.HIGHEST_PRICE));
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        int failures = 0;
+        for (int s = 0; s < snapshots.size() && failures == 0; s++) {
+            for (int i = 0; i < 1000; i++) {
+                int upperBound = random.nextInt(Main.HIGHEST_PRICE);
+                int lowerBound = random.nextInt(upperBound + 1);
+                int expectedCount = 0;
+                for (int price = lowerBound; price <= upperBound; price++) {
+                    expectedCount += snapshotCounts.get(s)[price];
+                }
+                int count = snapshots.get(s).getNumberOfItemsInPriceRange(lowerBound, upperBound);
+                if (count != expectedCount) {
+                    System.out.println(String.format("snapshot %d (version %d): [%d, %d] has %d items instead of %d",
+                            s, snapshots.get(s).getVersion(), lowerBound, upperBound, count, expectedCount));
+                    failures = 1;
+                    break;
+                }
+            }
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        if (failures == 0) {
+            System.out.println("snapshots, " + snapshots.size() + " versions: ok");
+        }
+        return failures;
+    }
+
+    //every thread adds items and removes them again, so the inventory ends with the items it started with;
+    //returns the number of failures, 0 or 1
+    private static int checkConcurrent(String name, Inventory inventory) throws InterruptedException {
+        int initialItems = 1000;
+        for (int i = 0; i < initialItems; i++) {
+            inventory.addItem(i % Main.HIGHEST_PRICE);
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (int threadIndex = 0; threadIndex < 8; threadIndex++) {
+            int seed = threadIndex;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(seed);
+                int[] prices = new int[OPERATIONS / 8];
+                for (int i = 0; i < prices.length; i++) {
+                    prices[i] = random.nextInt(Main.HIGHEST_PRICE);
+                    inventory.addItem(prices[i]);
+                }
+                for (int price : prices) {
+                    inventory.removeItem(price);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        int count = inventory.getNumberOfItemsInPriceRange(0, Main.HIGHEST_PRICE);
+        if (count != initialItems) {
+            System.out.println(String.format("%s, concurrent: %d items instead of %d", name, count, initialItems));
+            return 1;
+        }
+        System.out.println(name + ", concurrent: ok");
+        return 0;
+    }
+}
@@ -1,19 +1,68 @@
 
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 public class Main {
     public static final int HIGHEST_PRICE = 1000;
 
+    //the readers share this many queries, so every number of readers does the same work
+    public static final int NUMBER_OF_QUERIES = 700000;
+    public static final int INITIAL_NUMBER_OF_ITEMS = 100000;
+    public static final int MAX_READER_THREADS = 64;
+
+    //Measures every Inventory with 1, 2, 4... up to 64 reader threads (or the number given as the first argument)
+    //and one writer, and prints the time the readers took to run all the queries
     public static void main(String[] args) throws InterruptedException {
-        InventoryDatabase inventoryDatabase = new InventoryDatabase();
+        int maxReaderThreads = args.length > 0 ? Integer.parseInt(args[0]) : MAX_READER_THREADS;
+
+        Map<String, Supplier<Inventory>> inventories = new LinkedHashMap<>();
+        inventories.put("ReentrantReadWriteLock", InventoryDatabase::new);
+        inventories.put("ConcurrentSkipListMap", ConcurrentInventoryDatabase::new);
+        inventories.put("Fenwick tree", () -> new FenwickInventoryDatabase(HIGHEST_PRICE));
+        inventories.put("Fenwick tree, StampedLock", () -> new OptimisticInventoryDatabase(HIGHEST_PRICE));
+        inventories.put("persistent segment tree", () -> new VersionedInventoryDatabase(HIGHEST_PRICE));
+
+        StringBuilder header = new StringBuilder("readers");
+        for (String name : inventories.keySet()) {
+            header.append(String.format("  %24s", name));
+        }
+        System.out.println(header);
+
+        for (int numberOfReaderThreads = 1; numberOfReaderThreads <= maxReaderThreads; numberOfReaderThreads *= 2) {
+            StringBuilder line = new StringBuilder(String.format("%7d", numberOfReaderThreads));
+            String lockMetrics = "";
+            for (Supplier<Inventory> inventorySupplier : inventories.values()) {
+                Inventory inventory = inventorySupplier.get();
+                long readingTime = measureReading(inventory, numberOfReaderThreads);
+                line.append(String.format("  %21d ms", readingTime));
+                if (inventory instanceof OptimisticInventoryDatabase) {
+                    OptimisticInventoryDatabase optimisticInventory = (OptimisticInventoryDatabase) inventory;
+                    lockMetrics = String.format("  (StampedLock: %d retries, %.4f%% of the queries fell back to the read lock)",
+                            optimisticInventory.getRetries(),
+                            100.0 * optimisticInventory.getFallbacks() / numberOfQueries(numberOfReaderThreads));
+                }
+            }
+            System.out.println(line + lockMetrics);
+        }
+    }
+
+    //the queries all the readers run together, NUMBER_OF_QUERIES rounded down to a multiple of the number of readers
+    public static int numberOfQueries(int numberOfReaderThreads) {
+        return NUMBER_OF_QUERIES / numberOfReaderThreads * numberOfReaderThreads;
+    }
 
+    public static long measureReading(Inventory inventoryDatabase, int numberOfReaderThreads) throws InterruptedException {
+        //the initial items in a single change, instead of a write lock per item
         Random random = new Random();
-        for (int i = 0; i < 100000; i++) {
-            inventoryDatabase.addItem(random.nextInt(HIGHEST_PRICE));
+        int[] restock = new int[HIGHEST_PRICE];
+        for (int i = 0; i < INITIAL_NUMBER_OF_ITEMS; i++) {
+            restock[random.nextInt(HIGHEST_PRICE)]++;
         }
+        inventoryDatabase.applyDeltas(restock);
 
         Thread writer = new Thread(() -> {
             while (true) {
@@ -22,6 +71,8 @@ public class Main {
                 try {
                     Thread.sleep(10);
                 } catch (InterruptedException e) {
+                    //the readers are done
+                    return;
                 }
             }
         });
@@ -29,14 +80,15 @@ public class Main {
         writer.setDaemon(true);
         writer.start();
 
-        int numberOfReaderThreads = 7;
         List<Thread> readers = new ArrayList<>();
 
         for (int readerIndex = 0; readerIndex < numberOfReaderThreads; readerIndex++) {
             Thread reader = new Thread(() -> {
-                for (int i = 0; i < 100000; i++) {
-                    int upperBoundPrice = random.nextInt(HIGHEST_PRICE);
-                    int lowerBoundPrice = upperBoundPrice > 0 ? random.nextInt(upperBoundPrice) : 0;
+                //a Random per thread, a shared one would be one more cache line bouncing between the readers
+                ThreadLocalRandom readerRandom = ThreadLocalRandom.current();
+                for (int i = 0; i < numberOfQueries(numberOfReaderThreads) / numberOfReaderThreads; i++) {
+                    int upperBoundPrice = readerRandom.nextInt(HIGHEST_PRICE);
+                    int lowerBoundPrice = upperBoundPrice > 0 ? readerRandom.nextInt(upperBoundPrice) : 0;
                     inventoryDatabase.getNumberOfItemsInPriceRange(lowerBoundPrice, upperBoundPrice);
                 }
             });
@@ -55,13 +107,15 @@ public class Main {
         }
 
         long endReadingTime = System.currentTimeMillis();
+        writer.interrupt();
+        writer.join();
 
-        //Compare the time used by using ReentrantLock vs. reentrantReadWriteLock
-        System.out.println(String.format("Reading took %d ms", endReadingTime - startReadingTime));
+        //Compare the time used by using ReentrantLock vs. reentrantReadWriteLock vs. the lock free inventory
+        return endReadingTime - startReadingTime;
     }
 
     //The data structure used for map from a price to a number of items for that price is the Tree Map (red black tree)
-    public static class InventoryDatabase {
+    public static class InventoryDatabase implements Inventory {
         private TreeMap<Integer, Integer> priceToCountMap = new TreeMap<>();
         //private ReentrantLock lock = new ReentrantLock();
         private ReentrantReadWriteLock reentrantReadWriteLock = new ReentrantReadWriteLock();
@@ -69,6 +123,7 @@ public class Main {
         private Lock writeLock = reentrantReadWriteLock.writeLock();
         private Lock lock = new ReentrantLock();
 
+        @Override
         public int getNumberOfItemsInPriceRange(int lowerBound, int upperBound) {
             //lock.lock();
             readLock.lock();
@@ -77,7 +132,8 @@ public class Main {
 
                 Integer toKey = priceToCountMap.floorKey(upperBound);
 
-                if (fromKey == null || toKey == null) {
+                //no price in the range at all: the first price above it is after the last price below it
+                if (fromKey == null || toKey == null || fromKey > toKey) {
                     return 0;
                 }
 
@@ -96,6 +152,7 @@ public class Main {
             }
         }
 
+        @Override
         public void addItem(int price) {
             //lock.lock();
             writeLock.lock();
@@ -113,6 +170,7 @@ public class Main {
             }
         }
 
+        @Override
         public void removeItem(int price) {
             //lock.lock();
             writeLock.lock();
@@ -128,5 +186,26 @@ public class Main {
                 // lock.unlock();
             }
         }
+
+        @Override
+        public void applyDeltas(int[] deltas) {
+            writeLock.lock();
+            try {
+                for (int price = 0; price < deltas.length; price++) {
+                    if (deltas[price] == 0) {
+                        continue;
+                    }
+                    Integer numberOfItemsForPrice = priceToCountMap.get(price);
+                    long newNumberOfItems = (numberOfItemsForPrice == null ? 0 : numberOfItemsForPrice) + (long) deltas[price];
+                    if (newNumberOfItems <= 0) {
+                        priceToCountMap.remove(price);
+                    } else {
+                        priceToCountMap.put(price, (int) Math.min(Integer.MAX_VALUE, newNumberOfItems));
+                    }
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
     }
 }
@@ -0,0 +1,93 @@
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+//The FenwickTree of FenwickInventoryDatabase behind a StampedLock, whose readers do not lock at all.
+
+//Even the read lock of a ReentrantReadWriteLock is a write: every reader increments and decrements the count
+//of readers, a cache line shared by all of them. An optimistic read of a StampedLock only reads the state
+//of the lock, before and after reading the tree (validate); if a writer got the lock in between, the count
+//may be wrong and the reader tries again. Reading an int[] while a writer changes it is harmless in Java
+//(no exception, at worst a stale count), so the tree can be read optimistically, which a TreeMap could not be.
+//After MAX_OPTIMISTIC_ATTEMPTS failed attempts (a writer holding the lock for long, or writing all the time)
+//the reader takes the read lock, so it cannot starve.
+
+//The retries and the fallbacks to the read lock are counted, the queries which succeed at once are not,
+//so the readers touch no shared state at all unless they have to.
+
+public class OptimisticInventoryDatabase implements Inventory {
+    private static final int MAX_OPTIMISTIC_ATTEMPTS = 3;
+
+    private final FenwickTree tree;
+    private final StampedLock lock = new StampedLock();
+    //optimistic reads which failed validation, and queries which gave up and took the read lock
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    //an inventory of the prices from 0 to highestPrice - 1
+    public OptimisticInventoryDatabase(int highestPrice) {
+        this.tree = new FenwickTree(highestPrice);
+    }
+
+    @Override
+    public int getNumberOfItemsInPriceRange(int lowerBound, int upperBound) {
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_ATTEMPTS; attempt++) {
+            //0 while a writer holds the lock, validate then fails
+            long stamp = lock.tryOptimisticRead();
+            int count = tree.count(lowerBound, upperBound);
+            if (lock.validate(stamp)) {
+                return count;
+            }
+            retries.increment();
+        }
+        fallbacks.increment();
+        long stamp = lock.readLock();
+        try {
+            return tree.count(lowerBound, upperBound);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void addItem(int price) {
+        tree.checkPrice(price);
+        long stamp = lock.writeLock();
+        try {
+            tree.addItem(price);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void removeItem(int price) {
+        tree.checkPrice(price);
+        long stamp = lock.writeLock();
+        try {
+            tree.removeItem(price);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void applyDeltas(int[] deltas) {
+        tree.checkDeltas(deltas);
+        long stamp = lock.writeLock();
+        try {
+            tree.applyDeltas(deltas);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    //the optimistic reads which failed validation since the inventory was created
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    //the queries which took the read lock after MAX_OPTIMISTIC_ATTEMPTS failed optimistic reads
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+}
@@ -0,0 +1,167 @@
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+//The inventory as a persistent segment tree over the prices, from 0 to highestPrice - 1: a change never modifies
+//a node, it copies the nodes on the path from the root to its price (log2(highestPrice) of them) and shares
+//all the others with the previous version. Every version of the tree is therefore immutable.
+
+//snapshot gives the current version: a point in time view of the whole inventory, which answers any number
+//of range queries consistently, however long the report takes and whatever the writers do meanwhile.
+//The subMap of Main.InventoryDatabase is only a live view, valid while the read lock is held.
+//Taking a snapshot is reading a volatile field, and reading it takes no lock, so the readers never block
+//the writers, nor each other. The writers take a lock between themselves only, and publish the new root.
+
+//No list of the versions is kept: a version is referenced by its snapshots and shares its nodes with the versions
+//after it, so once no snapshot references it, the garbage collector reclaims the nodes no later version shares.
+
+public class VersionedInventoryDatabase implements Inventory {
+    private final int highestPrice;
+    private final Lock writeLock = new ReentrantLock();
+    private volatile Snapshot current;
+
+    //an inventory of the prices from 0 to highestPrice - 1
+    public VersionedInventoryDatabase(int highestPrice) {
+        if (highestPrice <= 0) {
+            throw new IllegalArgumentException("Invalid highest price " + highestPrice);
+        }
+        this.highestPrice = highestPrice;
+        this.current = new Snapshot(null, highestPrice, 0);
+    }
+
+    //the inventory as it is now, and will stay for as long as the snapshot is used
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    //a query on the current version, to run several consistent queries take a snapshot
+    @Override
+    public int getNumberOfItemsInPriceRange(int lowerBound, int upperBound) {
+        return current.getNumberOfItemsInPriceRange(lowerBound, upperBound);
+    }
+
+    @Override
+    public void addItem(int price) {
+        checkPrice(price);
+        writeLock.lock();
+        try {
+            Snapshot snapshot = current;
+            current = new Snapshot(add(snapshot.root, 0, highestPrice, price, 1), highestPrice, snapshot.version + 1);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void removeItem(int price) {
+        checkPrice(price);
+        writeLock.lock();
+        try {
+            Snapshot snapshot = current;
+            if (count(snapshot.root, 0, highestPrice, price, price + 1) == 0) {
+                return;
+            }
+            current = new Snapshot(add(snapshot.root, 0, highestPrice, price, -1), highestPrice, snapshot.version + 1);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //all the deltas in a single new version, so no snapshot sees a part of them
+    @Override
+    public void applyDeltas(int[] deltas) {
+        FenwickTree.checkDeltas(deltas, highestPrice);
+        writeLock.lock();
+        try {
+            Snapshot snapshot = current;
+            Node root = snapshot.root;
+            for (int price = 0; price < Math.min(deltas.length, highestPrice); price++) {
+                if (deltas[price] == 0) {
+                    continue;
+                }
+                int count = count(root, 0, highestPrice, price, price + 1);
+                int newCount = (int) Math.max(0, Math.min(Integer.MAX_VALUE, (long) count + deltas[price]));
+                if (newCount != count) {
+                    root = add(root, 0, highestPrice, price, newCount - count);
+                }
+            }
+            current = new Snapshot(root, highestPrice, snapshot.version + 1);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //the node of the prices [from, to) with delta more items of the given price, made of new nodes
+    //on the path to the price and of the nodes of the previous version everywhere else
+    private static Node add(Node node, int from, int to, int price, int delta) {
+        int count = (node == null ? 0 : node.count) + delta;
+        if (to - from == 1) {
+            return new Node(count, null, null);
+        }
+        int middle = (from + to) >>> 1;
+        Node left = node == null ? null : node.left;
+        Node right = node == null ? null : node.right;
+        if (price < middle) {
+            left = add(left, from, middle, price, delta);
+        } else {
+            right = add(right, middle, to, price, delta);
+        }
+        return new Node(count, left, right);
+    }
+
+    //the number of items of the prices [lowerBound, upperBound) under the node of the prices [from, to)
+    private static int count(Node node, int from, int to, int lowerBound, int upperBound) {
+        if (node == null || upperBound <= from || to <= lowerBound) {
+            return 0;
+        }
+        if (lowerBound <= from && to <= upperBound) {
+            return node.count;
+        }
+        int middle = (from + to) >>> 1;
+        return count(node.left, from, middle, lowerBound, upperBound) + count(node.right, middle, to, lowerBound, upperBound);
+    }
+
+    private void checkPrice(int price) {
+        if (price < 0 || price >= highestPrice) {
+            throw new IllegalArgumentException("Price " + price + " out of [0, " + highestPrice + ")");
+        }
+    }
+
+    //the number of items of a range of prices, and its two halves; null stands for a range without items
+    private static final class Node {
+        private final int count;
+        private final Node left;
+        private final Node right;
+
+        private Node(int count, Node left, Node right) {
+            this.count = count;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    //a version of the inventory, immutable
+    public static final class Snapshot {
+        private final Node root;
+        private final int highestPrice;
+        //the number of changes (an item, or a batch of applyDeltas) before this version
+        private final long version;
+
+        private Snapshot(Node root, int highestPrice, long version) {
+            this.root = root;
+            this.highestPrice = highestPrice;
+            this.version = version;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        //the number of items whose price is in [lowerBound, upperBound], in this version
+        public int getNumberOfItemsInPriceRange(int lowerBound, int upperBound) {
+            if (lowerBound > upperBound) {
+                return 0;
+            }
+            return count(root, 0, highestPrice, lowerBound, (int) Math.min((long) upperBound + 1, highestPrice));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+//Buffers the additions and removals of every writer thread, and applies them to an Inventory in batches
+//(applyDeltas), so a burst of changes takes the write lock of the inventory once per batch instead of once per item.
+
+//Every writer thread appends to its own buffer, a delta per price, which only the thread itself and the merges lock,
+//so the writers do not contend with each other nor with the readers. The buffers are merged into a single
+//applyDeltas when a thread has buffered maxPendingChanges changes, every flushIntervalMillis milliseconds,
+//and when a reader asks for it (flush, getExactNumberOfItemsInPriceRange).
+
+//Staleness bound: getNumberOfItemsInPriceRange reads the inventory as it is, so a change shows up in the queries
+//at most flushIntervalMillis milliseconds after it was made (plus the time of a merge), or sooner,
+//once its thread has made maxPendingChanges more changes.
+//The additions and removals of a price cancel out before they are applied, within the buffer of a thread
+//and across threads too, since a merge adds all the buffers into a single applyDeltas: removing an item which
+//is not in the inventory, then adding one (in the same thread, or the removal in one thread and the addition
+//in another), leaves one item when done one after the other, but none once combined.
+
+//A buffer belongs to its thread for as long as the thread lives. The merges drop the buffers of the threads
+//which ended, once their last changes are applied, so a pool which keeps replacing its threads does not make
+//the list of buffers, nor the merges which walk it, grow without bound. A merge reuses the same array of deltas.
+
+public class WriteCombiningInventory implements Inventory, AutoCloseable {
+    private final Inventory inventory;
+    private final int highestPrice;
+    private final int maxPendingChanges;
+    private final List<DeltaBuffer> buffers = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<DeltaBuffer> threadBuffer;
+    private final Object flushLock = new Object();
+    //guarded by flushLock, all 0 between two merges
+    private final int[] mergedDeltas;
+    private final ScheduledExecutorService flusher;
+    private final ScheduledFuture<?> periodicFlush;
+
+    //buffers the changes of the prices from 0 to highestPrice - 1
+    public WriteCombiningInventory(Inventory inventory, int highestPrice, int maxPendingChanges, long flushIntervalMillis) {
+        if (highestPrice <= 0 || maxPendingChanges <= 0 || flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Invalid write combining of " + highestPrice + " prices, "
+                    + maxPendingChanges + " changes, every " + flushIntervalMillis + " ms");
+        }
+        this.inventory = inventory;
+        this.highestPrice = highestPrice;
+        this.maxPendingChanges = maxPendingChanges;
+        this.mergedDeltas = new int[highestPrice];
+        this.threadBuffer = ThreadLocal.withInitial(() -> {
+            DeltaBuffer buffer = new DeltaBuffer(highestPrice, Thread.currentThread());
+            buffers.add(buffer);
+            return buffer;
+        });
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "inventory-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.periodicFlush = flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    //the inventory as of the last merge, see the staleness bound above
+    @Override
+    public int getNumberOfItemsInPriceRange(int lowerBound, int upperBound) {
+        return inventory.getNumberOfItemsInPriceRange(lowerBound, upperBound);
+    }
+
+    //every change made before the call is counted
+    public int getExactNumberOfItemsInPriceRange(int lowerBound, int upperBound) {
+        flush();
+        return inventory.getNumberOfItemsInPriceRange(lowerBound, upperBound);
+    }
+
+    @Override
+    public void addItem(int price) {
+        change(price, 1);
+    }
+
+    @Override
+    public void removeItem(int price) {
+        change(price, -1);
+    }
+
+    @Override
+    public void applyDeltas(int[] deltas) {
+        //a batch already, the buffered changes go first so the order of the changes of the thread is kept
+        flush();
+        inventory.applyDeltas(deltas);
+    }
+
+    //merges the buffers of all the threads and applies them in a single applyDeltas; one merge at a time,
+    //so when flush returns, the changes another merge took from the buffers are applied too
+    public void flush() {
+        synchronized (flushLock) {
+            boolean changed = false;
+            List<DeltaBuffer> endedBuffers = null;
+            for (DeltaBuffer buffer : buffers) {
+                //checked before draining: a thread which ended before the check made no change after the drain,
+                //one which ends after it keeps its buffer until the next merge
+                boolean ended = buffer.isOwnerEnded();
+                changed |= buffer.drainTo(mergedDeltas);
+                if (ended) {
+                    if (endedBuffers == null) {
+                        endedBuffers = new ArrayList<>();
+                    }
+                    endedBuffers.add(buffer);
+                }
+            }
+            if (endedBuffers != null) {
+                buffers.removeAll(endedBuffers);
+            }
+            if (changed) {
+                try {
+                    inventory.applyDeltas(mergedDeltas);
+                } finally {
+                    Arrays.fill(mergedDeltas, 0);
+                }
+            }
+        }
+    }
+
+    //the buffers of the threads which changed the inventory, less the ones dropped by the merges
+    int getNumberOfBuffers() {
+        return buffers.size();
+    }
+
+    //stops the periodic merge and applies what is left
+    @Override
+    public void close() {
+        periodicFlush.cancel(false);
+        flusher.shutdown();
+        flush();
+    }
+
+    private void change(int price, int delta) {
+        if (price < 0 || price >= highestPrice) {
+            throw new IllegalArgumentException("Price " + price + " out of [0, " + highestPrice + ")");
+        }
+        if (threadBuffer.get().add(price, delta) >= maxPendingChanges) {
+            flush();
+        }
+    }
+
+    private static class DeltaBuffer {
+        private final int[] deltas;
+        //weak, so a buffer does not keep its thread alive
+        private final WeakReference<Thread> owner;
+        private int pendingChanges;
+
+        DeltaBuffer(int highestPrice, Thread owner) {
+            deltas = new int[highestPrice];
+            this.owner = new WeakReference<>(owner);
+        }
+
+        //the thread will not add any change to the buffer anymore
+        boolean isOwnerEnded() {
+            Thread thread = owner.get();
+            return thread == null || !thread.isAlive();
+        }
+
+        //returns the number of changes buffered
+        synchronized int add(int price, int delta) {
+            deltas[price] += delta;
+            return ++pendingChanges;
+        }
+
+        //adds the buffered deltas to the given ones, returns whether there were any
+        synchronized boolean drainTo(int[] mergedDeltas) {
+            if (pendingChanges == 0) {
+                return false;
+            }
+            for (int price = 0; price < deltas.length; price++) {
+                mergedDeltas[price] += deltas[price];
+                deltas[price] = 0;
+            }
+            pendingChanges = 0;
+            return true;
+        }
+    }
+}